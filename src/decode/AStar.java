@@ -0,0 +1,330 @@
+package decode;
+
+import grammar.Grammar;
+import grammar.Rule;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CLASS: AStar
+ *
+ * Definition: an agenda-based Viterbi parser which finds the same best parse as the CKY algorithm
+ * Role: build the items of the chart best-first, ordered by their inside score plus an admissible
+ *       estimate of their outside score, and stop as soon as the start symbol over the whole sentence
+ *       is taken off the agenda
+ * Responsibility: precompute the outside estimates of the grammar, and keep the statistics of the items
+ *                 and cells which were explored
+ *
+ * The outside estimate of an item X over the words j..i-1 is the sum of two bounds:
+ * - the best grammar-only outside score of X, over all contexts in which X may appear below the start
+ *   symbol, where every sibling subtree is charged its best grammar-only inside score
+ * - the score of the cheapest tag of every word outside of j..i-1
+ * Together they never overestimate the real outside score and never decrease along a derivation,
+ * so the first time an item is taken off the agenda its score is the Viterbi score.
+ */
+public class AStar {
+
+	private final CompiledGrammar m_grammar;
+	private final int m_nStartSymbol;
+
+	// The best grammar-only inside score of every symbol, where a pre-terminal costs nothing
+	private final double[] m_arrInsideEstimate;
+
+	// The best grammar-only outside score of every symbol, infinite for symbols which never appear
+	// below the start symbol
+	private final double[] m_arrOutsideEstimate;
+
+	// Statistics of the items taken off the agenda and of the cells in which any item was finished
+	private final AtomicLong m_nItemsPopped = new AtomicLong();
+	private final AtomicLong m_nCellsExplored = new AtomicLong();
+	private final AtomicLong m_nCells = new AtomicLong();
+
+	/**
+	 * @param g the grammar
+	 * @param cg the compiled grammar
+	 * @param startSymbol the start symbol
+	 * @param extraTags pre-terminals which do not appear in the lexicon but may be tagged over a word
+	 */
+	public AStar(Grammar g, CompiledGrammar cg, String startSymbol, String... extraTags) {
+		m_grammar = cg;
+		m_nStartSymbol = cg.getSymbolNum(startSymbol);
+
+		int symbolCount = cg.getSymbolCount();
+		int ruleCount = cg.getRuleCount();
+
+		m_arrInsideEstimate = new double[symbolCount];
+		Arrays.fill(m_arrInsideEstimate, Double.POSITIVE_INFINITY);
+		for (Set<Rule> lexicalRules : g.getLexicalEntries().values())
+			for (Rule r : lexicalRules)
+				m_arrInsideEstimate[cg.getSymbolNum(r.getLHS().toString())] = 0.0;
+		for (String tag : extraTags)
+			m_arrInsideEstimate[cg.getSymbolNum(tag)] = 0.0;
+
+		// The rule scores are not negative, so relaxing the rules until nothing changes converges
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int r = 0; r < ruleCount; r++) {
+				double score = cg.m_arrRuleScore[r] + m_arrInsideEstimate[cg.m_arrRuleLeft[r]];
+				if (cg.m_arrRuleRight[r] != -1)
+					score += m_arrInsideEstimate[cg.m_arrRuleRight[r]];
+				if (score < m_arrInsideEstimate[cg.m_arrRuleParent[r]]) {
+					m_arrInsideEstimate[cg.m_arrRuleParent[r]] = score;
+					changed = true;
+				}
+			}
+		}
+
+		m_arrOutsideEstimate = new double[symbolCount];
+		Arrays.fill(m_arrOutsideEstimate, Double.POSITIVE_INFINITY);
+		m_arrOutsideEstimate[m_nStartSymbol] = 0.0;
+		changed = true;
+		while (changed) {
+			changed = false;
+			for (int r = 0; r < ruleCount; r++) {
+				double parentOut = m_arrOutsideEstimate[cg.m_arrRuleParent[r]] + cg.m_arrRuleScore[r];
+				int left = cg.m_arrRuleLeft[r];
+				int right = cg.m_arrRuleRight[r];
+				if (right == -1) {
+					if (parentOut < m_arrOutsideEstimate[left]) {
+						m_arrOutsideEstimate[left] = parentOut;
+						changed = true;
+					}
+					continue;
+				}
+				if (parentOut + m_arrInsideEstimate[right] < m_arrOutsideEstimate[left]) {
+					m_arrOutsideEstimate[left] = parentOut + m_arrInsideEstimate[right];
+					changed = true;
+				}
+				if (parentOut + m_arrInsideEstimate[left] < m_arrOutsideEstimate[right]) {
+					m_arrOutsideEstimate[right] = parentOut + m_arrInsideEstimate[left];
+					changed = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fill the chart best-first until the start symbol over the whole sentence is finished. Only the
+	 * entries on which the best parse depends are guaranteed to hold their Viterbi scores
+	 * @param decoder the decoder used to tag the words
+	 * @param chart an empty chart for the sentence
+	 * @param input the words of the sentence
+	 * @param budget the budget of the sentence, or null for none. The search stops when it runs out
+	 * @return true if a parse was found
+	 */
+	boolean fillChart(Decode decoder, Chart chart, List<String> input, Budget budget) {
+		CompiledGrammar cg = m_grammar;
+		int n = input.size();
+		m_nCells.addAndGet(n * (n + 1) / 2);
+
+		// Tag the words, and bound the score of the words outside of every span by their cheapest tags
+		double[] prefix = new double[n + 1];
+		double[] suffix = new double[n + 1];
+		for (int w = 0; w < n; w++) {
+			int cell = chart.cell(w, w + 1);
+			decoder.terminalTag(cg, chart, cell, input.get(w));
+			if (chart.isEmpty(cell))
+				return false;
+			double best = Double.POSITIVE_INFINITY;
+			int[] active = chart.getActive(cell);
+			for (int a = 0; a < chart.getActiveCount(cell); a++)
+				best = Math.min(best, chart.getScore(cell, active[a]));
+			prefix[w + 1] = prefix[w] + best;
+		}
+		for (int w = n - 1; w >= 0; w--)
+			suffix[w] = suffix[w + 1] + (prefix[w + 1] - prefix[w]);
+
+		Agenda agenda = new Agenda();
+		for (int w = 0; w < n; w++) {
+			int cell = chart.cell(w, w + 1);
+			int[] active = chart.getActive(cell);
+			for (int a = 0; a < chart.getActiveCount(cell); a++)
+				push(agenda, chart, prefix, suffix, w, w + 1, active[a]);
+		}
+
+		// Finished items, whose Viterbi score is known
+		long[][] finished = new long[chart.getCellCount()][];
+		int[] finishedCount = new int[chart.getCellCount()];
+		int goalCell = chart.cell(0, n);
+		long popped = 0;
+		long explored = 0;
+		try {
+			while (!agenda.isEmpty()) {
+				int j = agenda.m_arrStart[0];
+				int i = agenda.m_arrEnd[0];
+				int symbol = agenda.m_arrSymbol[0];
+				double score = agenda.m_arrScore[0];
+				agenda.pop();
+
+				// Skip items which were improved after being pushed, or finished already
+				int cell = chart.cell(j, i);
+				if (score != chart.getScore(cell, symbol))
+					continue;
+				if (finished[cell] == null)
+					finished[cell] = chart.newSymbolSet();
+				if ((finished[cell][symbol >>> 6] & (1L << symbol)) != 0)
+					continue;
+				finished[cell][symbol >>> 6] |= 1L << symbol;
+				if (finishedCount[cell]++ == 0)
+					explored++;
+				popped++;
+				if (budget != null && popped % Budget.A_STAR_BLOCK == 0 && !budget.spend())
+					return false;
+
+				if (cell == goalCell && symbol == m_nStartSymbol)
+					return true;
+
+				// Unary chains above the item
+				for (int c = cg.m_arrClosureOffsets[symbol]; c < cg.m_arrClosureOffsets[symbol + 1]; c++) {
+					int parent = cg.m_arrClosureParent[c];
+					if (chart.add(cell, parent, score + cg.m_arrClosureScore[c], c, Chart.UNARY))
+						push(agenda, chart, prefix, suffix, j, i, parent);
+				}
+
+				// The item as the left child of finished items to its right
+				for (int m = i + 1; m <= n; m++) {
+					int rightCell = chart.cell(i, m);
+					if (finishedCount[rightCell] == 0)
+						continue;
+					long[] rightFinished = finished[rightCell];
+					double[] rightScores = chart.getScores(rightCell);
+					int parentCell = chart.cell(j, m);
+					boolean constituent = chart.isConstituent(parentCell);
+					for (int b = cg.m_arrBinaryOffsets[symbol]; b < cg.m_arrBinaryOffsets[symbol + 1]; b++) {
+						int right = cg.m_arrBinaryRight[b];
+						if ((rightFinished[right >>> 6] & (1L << right)) == 0)
+							continue;
+						int parent = cg.m_arrBinaryParent[b];
+						if (constituent && decoder.isBinarized(parent))
+							continue;
+						if (chart.add(parentCell, parent, score + rightScores[right] + cg.m_arrBinaryScore[b],
+								cg.m_arrBinaryRule[b], i))
+							push(agenda, chart, prefix, suffix, j, m, parent);
+					}
+				}
+
+				// The item as the right child of finished items to its left
+				for (int m = j - 1; m >= 0; m--) {
+					int leftCell = chart.cell(m, j);
+					if (finishedCount[leftCell] == 0)
+						continue;
+					long[] leftFinished = finished[leftCell];
+					double[] leftScores = chart.getScores(leftCell);
+					int parentCell = chart.cell(m, i);
+					boolean constituent = chart.isConstituent(parentCell);
+					for (int b = cg.m_arrRightOffsets[symbol]; b < cg.m_arrRightOffsets[symbol + 1]; b++) {
+						int left = cg.m_arrRightLeft[b];
+						if ((leftFinished[left >>> 6] & (1L << left)) == 0)
+							continue;
+						int parent = cg.m_arrRightParent[b];
+						if (constituent && decoder.isBinarized(parent))
+							continue;
+						if (chart.add(parentCell, parent, leftScores[left] + score + cg.m_arrRightScore[b],
+								cg.m_arrRightRule[b], j))
+							push(agenda, chart, prefix, suffix, m, i, parent);
+					}
+				}
+			}
+			return false;
+		} finally {
+			m_nItemsPopped.addAndGet(popped);
+			m_nCellsExplored.addAndGet(explored);
+		}
+	}
+
+	/**
+	 * Push the current entry of a symbol in a cell onto the agenda, unless it can not be part of a parse
+	 */
+	private void push(Agenda agenda, Chart chart, double[] prefix, double[] suffix, int j, int i, int symbol) {
+		double outside = m_arrOutsideEstimate[symbol];
+		if (outside == Double.POSITIVE_INFINITY)
+			return;
+		double score = chart.getScore(chart.cell(j, i), symbol);
+		agenda.push(score + outside + prefix[j] + suffix[i], score, j, i, symbol);
+	}
+
+	/**
+	 * @return the number of items taken off the agenda so far
+	 */
+	public long getItemsPopped() {
+		return m_nItemsPopped.get();
+	}
+
+	/**
+	 * @return the fraction of the chart cells in which any item was finished so far
+	 */
+	public double getExploredRatio() {
+		long cells = m_nCells.get();
+		return cells == 0 ? 1.0 : m_nCellsExplored.get() / (double) cells;
+	}
+
+	// A binary min-heap of items keyed by their priority. An item holds the span, the symbol and
+	// the inside score it had when it was pushed, so that stale copies can be recognized
+	private static class Agenda {
+		double[] m_arrPriority = new double[64];
+		double[] m_arrScore = new double[64];
+		int[] m_arrStart = new int[64];
+		int[] m_arrEnd = new int[64];
+		int[] m_arrSymbol = new int[64];
+		int m_nSize = 0;
+
+		boolean isEmpty() {
+			return m_nSize == 0;
+		}
+
+		void push(double priority, double score, int start, int end, int symbol) {
+			if (m_nSize == m_arrPriority.length) {
+				int capacity = m_nSize * 2;
+				m_arrPriority = Arrays.copyOf(m_arrPriority, capacity);
+				m_arrScore = Arrays.copyOf(m_arrScore, capacity);
+				m_arrStart = Arrays.copyOf(m_arrStart, capacity);
+				m_arrEnd = Arrays.copyOf(m_arrEnd, capacity);
+				m_arrSymbol = Arrays.copyOf(m_arrSymbol, capacity);
+			}
+			int pos = m_nSize++;
+			while (pos > 0) {
+				int parent = (pos - 1) >>> 1;
+				if (m_arrPriority[parent] <= priority)
+					break;
+				move(parent, pos);
+				pos = parent;
+			}
+			set(pos, priority, score, start, end, symbol);
+		}
+
+		// Remove the first item
+		void pop() {
+			int last = --m_nSize;
+			double priority = m_arrPriority[last];
+			int pos = 0;
+			while (true) {
+				int child = 2 * pos + 1;
+				if (child >= last)
+					break;
+				if (child + 1 < last && m_arrPriority[child + 1] < m_arrPriority[child])
+					child++;
+				if (priority <= m_arrPriority[child])
+					break;
+				move(child, pos);
+				pos = child;
+			}
+			move(last, pos);
+		}
+
+		private void move(int from, int to) {
+			set(to, m_arrPriority[from], m_arrScore[from], m_arrStart[from], m_arrEnd[from], m_arrSymbol[from]);
+		}
+
+		private void set(int pos, double priority, double score, int start, int end, int symbol) {
+			m_arrPriority[pos] = priority;
+			m_arrScore[pos] = score;
+			m_arrStart[pos] = start;
+			m_arrEnd[pos] = end;
+			m_arrSymbol[pos] = symbol;
+		}
+	}
+}
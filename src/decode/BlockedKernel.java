@@ -0,0 +1,215 @@
+package decode;
+
+import java.util.Arrays;
+
+/**
+ * CLASS: BlockedKernel
+ *
+ * Definition: the binary step of the CKY algorithm computed one rule at a time over all the split points of a cell
+ * Role: turn the max-plus product over the split points into loops over contiguous primitive arrays, which
+ *       the JIT compiler can run on the vector units of the CPU
+ * Responsibility: gather the scores of every child symbol over the split points of a cell into a row, and
+ *                 combine the rows of the children of every rule into the best score, rule and split point
+ *                 of every parent
+ *
+ * For the cell (j,i) with m = i-j-1 split points, the score of a symbol in the left cells (j,k) and in the right
+ * cells (k,i) is written to a row of m scores (EMPTY where the symbol is not in the cell). The score of a rule
+ * at every split point is then the sum of its score and the rows of its children, and its best split point
+ * the minimum of the sums. A sum is (rule score + left score) + right score, as in Decode.addBinaryRules, and
+ * equal scores are resolved in the order in which that method visits them (split point, position of the
+ * left child in its cell, rule number), so both give exactly the same chart.
+ *
+ * The rows and sums are kept in per-thread scratch arrays, which grow with the sentences.
+ */
+class BlockedKernel {
+
+	// Bits of a visiting order key: the split point, the position of the left child in its cell, the rule
+	private static final int RULE_BITS = 27;
+	private static final int POSITION_BITS = 20;
+
+	// The scratch arrays of a thread
+	private static final class Scratch {
+		// The row of every symbol in the left and right cells, -1 if it is in none of them
+		int[] m_arrLeftRow = new int[0];
+		int[] m_arrRightRow = new int[0];
+		int[] m_arrLeftSymbols = new int[0];
+		int[] m_arrRightSymbols = new int[0];
+
+		// The rows: scores, and for the left cells the position of the symbol in the cell
+		double[] m_arrLeft = new double[0];
+		double[] m_arrRight = new double[0];
+		int[] m_arrLeftPosition = new int[0];
+		double[] m_arrSums = new double[0];
+
+		// The best score of every parent, the visiting order key of its best rule and split point,
+		// and of the first rule and split point that reached it
+		double[] m_arrBest = new double[0];
+		long[] m_arrBestKey = new long[0];
+		long[] m_arrFirstKey = new long[0];
+		long[] m_arrOrder = new long[0];
+
+		void ensure(int symbols, int splits) {
+			if (m_arrLeftRow.length < symbols) {
+				m_arrLeftRow = new int[symbols];
+				m_arrRightRow = new int[symbols];
+				Arrays.fill(m_arrLeftRow, -1);
+				Arrays.fill(m_arrRightRow, -1);
+				m_arrLeftSymbols = new int[symbols];
+				m_arrRightSymbols = new int[symbols];
+				m_arrBest = new double[symbols];
+				m_arrBestKey = new long[symbols];
+				m_arrFirstKey = new long[symbols];
+				m_arrOrder = new long[symbols];
+				Arrays.fill(m_arrBest, Chart.EMPTY);
+			}
+			int size = symbols * splits;
+			if (m_arrLeft.length < size) {
+				m_arrLeft = new double[size];
+				m_arrRight = new double[size];
+				m_arrLeftPosition = new int[size];
+			}
+			if (m_arrSums.length < splits)
+				m_arrSums = new double[splits];
+		}
+	}
+
+	private final ThreadLocal<Scratch> m_scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	/**
+	 * Add all the binary rules that can be derived for chart[j][i] from the cells below it
+	 * @param cg the grammar
+	 * @param chart the chart being filled
+	 * @param j the start of the span
+	 * @param i the end of the span (exclusive)
+	 */
+	void addBinaryRules(CompiledGrammar cg, Chart chart, int j, int i) {
+		int cell = chart.cell(j, i);
+		if (chart.isClosed(cell))
+			return;
+
+		int m = i - j - 1;
+		Scratch s = m_scratch.get();
+		s.ensure(cg.getSymbolCount(), m);
+		int[] leftRow = s.m_arrLeftRow;
+		int[] rightRow = s.m_arrRightRow;
+		double[] left = s.m_arrLeft;
+		double[] right = s.m_arrRight;
+		int[] leftPosition = s.m_arrLeftPosition;
+		double[] sums = s.m_arrSums;
+		double[] best = s.m_arrBest;
+		long[] bestKey = s.m_arrBestKey;
+		long[] firstKey = s.m_arrFirstKey;
+
+		// Gather the rows of the symbols of the left and right cells
+		int leftRows = 0;
+		int rightRows = 0;
+		for (int t = 0; t < m; t++) {
+			int leftCell = chart.cell(j, j + 1 + t);
+			int[] active = chart.getActive(leftCell);
+			for (int a = 0; a < chart.getActiveCount(leftCell); a++) {
+				int symbol = active[a];
+				if (leftRow[symbol] == -1) {
+					leftRow[symbol] = leftRows;
+					s.m_arrLeftSymbols[leftRows] = symbol;
+					Arrays.fill(left, leftRows * m, (leftRows + 1) * m, Chart.EMPTY);
+					leftRows++;
+				}
+				left[leftRow[symbol] * m + t] = chart.getScore(leftCell, symbol);
+				leftPosition[leftRow[symbol] * m + t] = a;
+			}
+
+			int rightCell = chart.cell(j + 1 + t, i);
+			active = chart.getActive(rightCell);
+			for (int a = 0; a < chart.getActiveCount(rightCell); a++) {
+				int symbol = active[a];
+				if (rightRow[symbol] == -1) {
+					rightRow[symbol] = rightRows;
+					s.m_arrRightSymbols[rightRows] = symbol;
+					Arrays.fill(right, rightRows * m, (rightRows + 1) * m, Chart.EMPTY);
+					rightRows++;
+				}
+				right[rightRow[symbol] * m + t] = chart.getScore(rightCell, symbol);
+			}
+		}
+
+		// Combine the rows of the children of every rule
+		int parents = 0;
+		int symbolCount = cg.getSymbolCount();
+		for (int p = 0; p < symbolCount; p++) {
+			if (!chart.isAllowed(cell, p))
+				continue;
+			int end = cg.m_arrParentOffsets[p + 1];
+			for (int b = cg.m_arrParentOffsets[p]; b < end; b++) {
+				int lr = leftRow[cg.m_arrParentLeft[b]];
+				int rr = rightRow[cg.m_arrParentRight[b]];
+				if (lr == -1 || rr == -1)
+					continue;
+				int lo = lr * m;
+				int ro = rr * m;
+				double ruleScore = cg.m_arrParentScore[b];
+
+				// The max-plus product, in loops without branches or dependencies between the split points
+				for (int t = 0; t < m; t++)
+					sums[t] = ruleScore + left[lo + t] + right[ro + t];
+				double min = Chart.EMPTY;
+				for (int t = 0; t < m; t++)
+					min = Math.min(min, sums[t]);
+				if (min == Chart.EMPTY)
+					continue;
+
+				int rule = cg.m_arrParentRule[b];
+				int first = 0;
+				while (sums[first] == Chart.EMPTY)
+					first++;
+				long key = key(first, leftPosition[lo + first], rule);
+				if (best[p] == Chart.EMPTY) {
+					s.m_arrOrder[parents++] = p;
+					firstKey[p] = key;
+				} else if (key < firstKey[p]) {
+					firstKey[p] = key;
+				}
+
+				if (min <= best[p]) {
+					int arg = first;
+					while (sums[arg] != min)
+						arg++;
+					key = key(arg, leftPosition[lo + arg], rule);
+					if (min < best[p] || key < bestKey[p]) {
+						best[p] = min;
+						bestKey[p] = key;
+					}
+				}
+			}
+		}
+
+		// Add the parents in the order in which Decode.addBinaryRules first reaches them
+		long[] order = s.m_arrOrder;
+		for (int n = 0; n < parents; n++) {
+			int p = (int) order[n];
+			order[n] = firstKey[p];
+		}
+		Arrays.sort(order, 0, parents);
+		for (int n = 0; n < parents; n++) {
+			int p = cg.m_arrRuleParent[(int) (order[n] & ((1L << RULE_BITS) - 1))];
+			long key = bestKey[p];
+			chart.add(cell, p, best[p], (int) (key & ((1L << RULE_BITS) - 1)),
+					j + 1 + (int) (key >>> (RULE_BITS + POSITION_BITS)));
+			best[p] = Chart.EMPTY;
+		}
+
+		// Clear the rows for the next cell
+		for (int r = 0; r < leftRows; r++)
+			leftRow[s.m_arrLeftSymbols[r]] = -1;
+		for (int r = 0; r < rightRows; r++)
+			rightRow[s.m_arrRightSymbols[r]] = -1;
+	}
+
+	private static long key(int split, int position, int rule) {
+		return ((long) split << (RULE_BITS + POSITION_BITS)) | ((long) position << RULE_BITS) | rule;
+	}
+}
@@ -0,0 +1,75 @@
+package decode;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CLASS: Budget
+ *
+ * Definition: the time and work the decoder may spend on one sentence
+ * Role: let the filling of a chart stop early, so that a single sentence can not hold a thread for long
+ * Responsibility: count the work spent, and tell when the time or the work runs out
+ *
+ * The work is measured in chart cells computed by the CKY algorithm, and in blocks of A_STAR_BLOCK items
+ * taken off the agenda by the A* search. A budget may be spent by the threads of a wavefront fill at once.
+ * A share of the limits is held back to fill the cells which were not reached when the rest ran out, with a
+ * narrow beam, so that both stay within the limits. The work of the cells already computed is not spent
+ * again, but as it is counted in cells, the reserve only completes a chart when the rest ran out early, as
+ * in the coarse pass or a pruned attempt which was retried.
+ */
+public class Budget {
+
+	// The number of A* items which count as one unit of work
+	static final int A_STAR_BLOCK = 256;
+
+	// The share of the time and work limits held back until the rest runs out
+	static final double RESERVE_SHARE = 0.25;
+
+	// The value of System.nanoTime() at which the time runs out, and the work which may be spent, before and
+	// after the reserve is released
+	private volatile long m_nDeadline;
+	private volatile long m_nMaxWork;
+	private final long m_nFinalDeadline;
+	private final long m_nFinalWork;
+	private final AtomicLong m_nWork = new AtomicLong();
+	private volatile boolean m_bExhausted = false;
+
+	/**
+	 * @param timeLimit the time limit in milliseconds, or 0 for none
+	 * @param workLimit the work limit, or 0 for none
+	 */
+	Budget(long timeLimit, long workLimit) {
+		long now = System.nanoTime();
+		m_nFinalDeadline = timeLimit > 0 ? now + timeLimit * 1000000 : Long.MAX_VALUE;
+		m_nFinalWork = workLimit > 0 ? workLimit : Long.MAX_VALUE;
+		m_nDeadline = timeLimit > 0 ? now + (long) (timeLimit * 1000000 * (1 - RESERVE_SHARE)) : Long.MAX_VALUE;
+		m_nMaxWork = workLimit > 0 ? Math.max(1, (long) (workLimit * (1 - RESERVE_SHARE))) : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Let the rest of the limits be spent, once the budget ran out. The work spent so far still counts, so
+	 * only the reserve is left. It must not be called while the budget is being spent
+	 */
+	void releaseReserve() {
+		m_nDeadline = m_nFinalDeadline;
+		m_nMaxWork = m_nFinalWork;
+		m_bExhausted = false;
+	}
+
+	/**
+	 * Spend one unit of work
+	 * @return false if the budget ran out, in which case the work should not be done
+	 */
+	boolean spend() {
+		if (m_bExhausted)
+			return false;
+		if (m_nWork.incrementAndGet() > m_nMaxWork || System.nanoTime() > m_nDeadline) {
+			m_bExhausted = true;
+			return false;
+		}
+		return true;
+	}
+
+	boolean isExhausted() {
+		return m_bExhausted;
+	}
+}
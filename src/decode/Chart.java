@@ -0,0 +1,332 @@
+package decode;
+
+import java.util.Arrays;
+
+/**
+ * CLASS: Chart
+ *
+ * Definition: the chart of the CKY algorithm
+ * Role: holds, for every span of the sentence, the best score of every non-terminal
+ *       together with the backpointers needed to rebuild the parse tree
+ * Responsibility: keep the scores and backpointers in primitive arrays indexed by symbol number,
+ *                 so that no objects are created while the chart is being filled
+ *
+ * The cells are laid out as a triangular array ordered by span length: all the spans of length 1
+ * come first, then all the spans of length 2 and so on.
+ *
+ * A chart may be reused for any number of sentences. The layout is computed for the capacity of the chart,
+ * the length of the longest sentence seen so far, so the cells of a shorter sentence are a subset of it.
+ * The arrays of a cell are allocated the first time it is used and kept from then on, and reset clears
+ * only the entries of the previous sentence, so a chart which has reached its working size does not
+ * allocate any more.
+ */
+class Chart {
+
+	// Marks a backpointer of a pre-terminal which was tagged directly over a word
+	public static final int TERMINAL = -1;
+
+	// Marks, in place of a split point, a backpointer which holds the number of a unary closure chain
+	// rather than the number of a rule
+	public static final int UNARY = -2;
+
+	// Marks an empty entry in a cell
+	public static final double EMPTY = Double.POSITIVE_INFINITY;
+
+	private int m_nLength;
+	private int m_nCapacity;
+	private final int m_nSymbols;
+
+	// Per cell scores (-LogProb) indexed by symbol number, EMPTY where the symbol was not derived
+	private double[][] m_arrScores;
+
+	// Per cell backpointers indexed by symbol number: the number of the rule which derived the symbol
+	// and the split point used by it (only meaningful for binary rules). The child symbols are found
+	// through the rule number in the CompiledGrammar
+	private int[][] m_arrRules;
+	private int[][] m_arrSplits;
+
+	// Per cell list of the symbols that are present in the cell, in order of insertion
+	private int[][] m_arrActive;
+	private int[] m_arrActiveCount;
+
+	// Per cell bit sets of the symbols that may be added to the cell, null where every symbol may be added.
+	// The sets point into m_arrAllowedStorage, which is kept between sentences
+	private long[][] m_arrAllowed;
+	private long[][] m_arrAllowedStorage;
+
+	// Per cell flag of cells in which no symbol is allowed
+	private boolean[] m_arrClosed;
+
+	// Per cell flag of cells which must be a constituent of the parse. The symbols added by the binarization
+	// may only enter them through the unary closure, above a symbol which is not
+	private boolean[] m_arrConstituent;
+
+	public Chart(int nLength, int nSymbols) {
+		m_nSymbols = nSymbols;
+		allocate(nLength);
+		m_nLength = nLength;
+	}
+
+	private void allocate(int nCapacity) {
+		m_nCapacity = nCapacity;
+		int nCells = getCellCount();
+		m_arrScores = new double[nCells][];
+		m_arrRules = new int[nCells][];
+		m_arrSplits = new int[nCells][];
+		m_arrActive = new int[nCells][];
+		m_arrActiveCount = new int[nCells];
+		m_arrAllowed = new long[nCells][];
+		m_arrAllowedStorage = new long[nCells][];
+		m_arrClosed = new boolean[nCells];
+		m_arrConstituent = new boolean[nCells];
+	}
+
+	/**
+	 * Empty the chart and prepare it for a new sentence. Only the cells of the previous sentence are
+	 * cleared, and only the entries that were present in them
+	 * @param nLength the length of the new sentence
+	 */
+	public void reset(int nLength) {
+		if (nLength > m_nCapacity) {
+			// Growing changes the layout, so the cells can not be kept
+			allocate(Math.max(nLength, m_nCapacity + m_nCapacity / 2));
+		} else {
+			for (int len = 1; len <= m_nLength; len++) {
+				for (int j = 0; j + len <= m_nLength; j++) {
+					int cell = cell(j, j + len);
+					int count = m_arrActiveCount[cell];
+					if (count > 0) {
+						double[] scores = m_arrScores[cell];
+						int[] active = m_arrActive[cell];
+						for (int a = 0; a < count; a++)
+							scores[active[a]] = EMPTY;
+						m_arrActiveCount[cell] = 0;
+					}
+					m_arrAllowed[cell] = null;
+					m_arrClosed[cell] = false;
+					m_arrConstituent[cell] = false;
+				}
+			}
+		}
+		m_nLength = nLength;
+	}
+
+	/**
+	 * Extend the sentence of the chart by new words at its end, keeping the entries of its cells.
+	 * The cells over the new words are empty
+	 * @param nLength the new length of the sentence
+	 */
+	public void extend(int nLength) {
+		if (nLength > m_nCapacity) {
+			int oldCapacity = m_nCapacity;
+			double[][] scores = m_arrScores;
+			int[][] rules = m_arrRules;
+			int[][] splits = m_arrSplits;
+			int[][] active = m_arrActive;
+			int[] activeCount = m_arrActiveCount;
+			long[][] allowed = m_arrAllowed;
+			long[][] allowedStorage = m_arrAllowedStorage;
+			boolean[] closed = m_arrClosed;
+			boolean[] constituent = m_arrConstituent;
+
+			// Move the cells of the sentence to their places in the new layout
+			allocate(Math.max(nLength, 2 * oldCapacity));
+			for (int len = 1; len <= m_nLength; len++) {
+				for (int j = 0; j + len <= m_nLength; j++) {
+					int oldCell = index(oldCapacity, j, j + len);
+					int cell = cell(j, j + len);
+					m_arrScores[cell] = scores[oldCell];
+					m_arrRules[cell] = rules[oldCell];
+					m_arrSplits[cell] = splits[oldCell];
+					m_arrActive[cell] = active[oldCell];
+					m_arrActiveCount[cell] = activeCount[oldCell];
+					m_arrAllowed[cell] = allowed[oldCell];
+					m_arrAllowedStorage[cell] = allowedStorage[oldCell];
+					m_arrClosed[cell] = closed[oldCell];
+					m_arrConstituent[cell] = constituent[oldCell];
+				}
+			}
+		}
+		m_nLength = nLength;
+	}
+
+	/**
+	 * Get the position of the cell spanning the words j..i-1 in the triangular array
+	 * @param j the start of the span
+	 * @param i the end of the span (exclusive)
+	 * @return the index of the cell
+	 */
+	public int cell(int j, int i) {
+		return index(m_nCapacity, j, i);
+	}
+
+	private static int index(int nCapacity, int j, int i) {
+		int len = i - j;
+		// All the spans which are shorter than len come before this one
+		return (len - 1) * nCapacity - (len - 1) * (len - 2) / 2 + j;
+	}
+
+	public int getLength() { return m_nLength; }
+
+	/**
+	 * @return the number of cell indices of the chart, which may be more than the cells of the sentence
+	 */
+	public int getCellCount() { return m_nCapacity * (m_nCapacity + 1) / 2; }
+
+	public double getScore(int cell, int symbol) {
+		double[] scores = m_arrScores[cell];
+		return scores == null ? EMPTY : scores[symbol];
+	}
+
+	public int getRule(int cell, int symbol) { return m_arrRules[cell][symbol]; }
+	public int getSplit(int cell, int symbol) { return m_arrSplits[cell][symbol]; }
+
+	/**
+	 * Get the scores of a cell, or null if nothing was derived in it
+	 */
+	public double[] getScores(int cell) { return m_arrActiveCount[cell] == 0 ? null : m_arrScores[cell]; }
+
+	/**
+	 * Get the symbols present in the cell. Only the first getActiveCount(cell) entries are valid
+	 */
+	public int[] getActive(int cell) { return m_arrActive[cell]; }
+	public int getActiveCount(int cell) { return m_arrActiveCount[cell]; }
+
+	public boolean isEmpty(int cell) { return m_arrActiveCount[cell] == 0; }
+
+	/**
+	 * Restrict the symbols that may be added to a cell
+	 * @param cell the index of the cell
+	 * @param allowed a bit set (as returned by newSymbolSet) of the symbols that may be added to the cell.
+	 *                It is copied, so the caller may reuse it
+	 */
+	public void setAllowed(int cell, long[] allowed) {
+		if (m_arrAllowedStorage[cell] == null)
+			m_arrAllowedStorage[cell] = newSymbolSet();
+		System.arraycopy(allowed, 0, m_arrAllowedStorage[cell], 0, allowed.length);
+		m_arrAllowed[cell] = m_arrAllowedStorage[cell];
+		boolean closed = true;
+		for (int w = 0; w < allowed.length && closed; w++)
+			closed = allowed[w] == 0;
+		m_arrClosed[cell] = closed;
+	}
+
+	/**
+	 * Further restrict the symbols that may be added to a cell, keeping only those allowed both before and by the given set
+	 * @param cell the index of the cell
+	 * @param allowed a bit set (as returned by newSymbolSet) of the symbols that may be added to the cell
+	 */
+	public void intersectAllowed(int cell, long[] allowed) {
+		long[] current = m_arrAllowed[cell];
+		if (current == null) {
+			setAllowed(cell, allowed);
+			return;
+		}
+		boolean closed = true;
+		for (int w = 0; w < allowed.length; w++) {
+			current[w] &= allowed[w];
+			closed &= current[w] == 0;
+		}
+		m_arrClosed[cell] = closed;
+	}
+
+	/**
+	 * @return true if no symbol may be added to the cell, in which case it need not be computed at all
+	 */
+	public boolean isClosed(int cell) { return m_arrClosed[cell]; }
+
+	/**
+	 * Mark a cell which must be a constituent of the parse
+	 * @param cell the index of the cell
+	 */
+	public void setConstituent(int cell) { m_arrConstituent[cell] = true; }
+
+	/**
+	 * @return true if the cell must be a constituent of the parse, so that the binarized symbols derived
+	 *         in it by binary rules are to be removed before its unary closure is computed
+	 */
+	public boolean isConstituent(int cell) { return m_arrConstituent[cell]; }
+
+	/**
+	 * @return true if the symbols that may be added to the cell were restricted
+	 */
+	public boolean isRestricted(int cell) { return m_arrAllowed[cell] != null; }
+
+	/**
+	 * @return the bit set of the symbols that may be added to a restricted cell, which must not be modified,
+	 *         or null if the cell is not restricted
+	 */
+	long[] getAllowed(int cell) { return m_arrAllowed[cell]; }
+
+	public boolean isAllowed(int cell, int symbol) {
+		long[] allowed = m_arrAllowed[cell];
+		return allowed == null || (allowed[symbol >>> 6] & (1L << symbol)) != 0;
+	}
+
+	/**
+	 * @return an empty bit set of symbols, to be used with setAllowed
+	 */
+	public long[] newSymbolSet() { return new long[(m_nSymbols + 63) >>> 6]; }
+
+	/**
+	 * Add a symbol to a cell, keeping the previous entry if it has a lower or equal score.
+	 * Symbols which are not allowed in the cell are ignored
+	 * @param cell the index of the cell
+	 * @param symbol the number of the symbol
+	 * @param score the -LogProb of the new entry
+	 * @param rule the number of the rule which derived the symbol, the number of a unary closure chain,
+	 *             or TERMINAL
+	 * @param split the split point of a binary rule, or UNARY
+	 * @return true if the entry was added
+	 */
+	public boolean add(int cell, int symbol, double score, int rule, int split) {
+		long[] allowed = m_arrAllowed[cell];
+		if (allowed != null && (allowed[symbol >>> 6] & (1L << symbol)) == 0)
+			return false;
+
+		double[] scores = m_arrScores[cell];
+		if (scores == null) {
+			scores = new double[m_nSymbols];
+			Arrays.fill(scores, EMPTY);
+			m_arrScores[cell] = scores;
+			m_arrRules[cell] = new int[m_nSymbols];
+			m_arrSplits[cell] = new int[m_nSymbols];
+			m_arrActive[cell] = new int[4];
+		}
+
+		double oldScore = scores[symbol];
+		if (!(score < oldScore))
+			return false;
+
+		if (oldScore == EMPTY) {
+			int count = m_arrActiveCount[cell];
+			if (count == m_arrActive[cell].length)
+				m_arrActive[cell] = Arrays.copyOf(m_arrActive[cell], Math.min(count * 2, m_nSymbols));
+			m_arrActive[cell][count] = symbol;
+			m_arrActiveCount[cell] = count + 1;
+		}
+
+		scores[symbol] = score;
+		m_arrRules[cell][symbol] = rule;
+		m_arrSplits[cell][symbol] = split;
+		return true;
+	}
+
+	/**
+	 * Remove symbols from a cell
+	 * @param cell the index of the cell
+	 * @param keep for every active symbol of the cell (in the order of getActive), whether to keep it
+	 */
+	public void retain(int cell, boolean[] keep) {
+		int[] active = m_arrActive[cell];
+		int count = m_arrActiveCount[cell];
+		int kept = 0;
+		for (int a = 0; a < count; a++) {
+			if (keep[a])
+				active[kept++] = active[a];
+			else
+				m_arrScores[cell][active[a]] = EMPTY;
+		}
+		m_arrActiveCount[cell] = kept;
+	}
+}
@@ -0,0 +1,138 @@
+package decode;
+
+import grammar.BoundaryModel;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CLASS: ChartConstraints
+ *
+ * Definition: the cells of a chart which the classifiers of a BoundaryModel rule out
+ * Role: close the cells which can not be constituents before any rule is tried, so that the CKY algorithm
+ *       only computes the cells of the spans which begin and end where constituents may
+ * Responsibility: classify the words of a sentence, restrict the cells of its chart, and count the cells
+ *                 removed and the gold constituents kept
+ *
+ * A word is taken to begin (or end) a constituent of more than one word when the score of its classifier is
+ * above -margin. The binarization of the grammar puts the symbols it adds over the last daughters of a
+ * constituent, so they end where the constituent ends but begin inside it:
+ * - a cell whose last word can not end a constituent is closed
+ * - a cell whose first word can not begin a constituent only holds binarized symbols
+ * The cell of the whole sentence and the cells of single words are never restricted.
+ */
+public class ChartConstraints {
+
+	private final BoundaryModel m_model;
+	private final double m_dMargin;
+
+	// The bit sets of no symbol and of the binarized symbols
+	private final long[] m_arrNone;
+	private final long[] m_arrBinarized;
+
+	private final LongAdder m_nCells = new LongAdder();
+	private final LongAdder m_nClosedCells = new LongAdder();
+	private final LongAdder m_nBinarizedCells = new LongAdder();
+
+	private final LongAdder m_nGoldBrackets = new LongAdder();
+	private final LongAdder m_nKeptBrackets = new LongAdder();
+
+	/**
+	 * @param model the classifiers, as trained by Train.trainBoundaries
+	 * @param decoder the decoder, which tells the binarized symbols
+	 * @param cg the compiled grammar of the decoder
+	 * @param margin the distance below 0 of the lowest score of a word which still begins or ends a constituent
+	 */
+	ChartConstraints(BoundaryModel model, Decode decoder, CompiledGrammar cg, double margin) {
+		m_model = model;
+		m_dMargin = margin;
+		m_arrNone = new long[(cg.getSymbolCount() + 63) >>> 6];
+		m_arrBinarized = new long[m_arrNone.length];
+		for (int s = 0; s < cg.getSymbolCount(); s++)
+			if (decoder.isBinarized(s))
+				m_arrBinarized[s >>> 6] |= 1L << s;
+	}
+
+	public double getMargin() {
+		return m_dMargin;
+	}
+
+	/**
+	 * Classify the words of a sentence
+	 * @param input the words of the sentence
+	 * @return by BoundaryModel.BEGIN or END and word, whether the word may begin or end a constituent
+	 */
+	private boolean[][] classify(List<String> input) {
+		boolean[][] open = new boolean[2][input.size()];
+		int[][] features = m_model.features(input);
+		for (int w = 0; w < input.size(); w++) {
+			open[BoundaryModel.BEGIN][w] = m_model.score(features[w], BoundaryModel.BEGIN) > -m_dMargin;
+			open[BoundaryModel.END][w] = m_model.score(features[w], BoundaryModel.END) > -m_dMargin;
+		}
+		return open;
+	}
+
+	/**
+	 * Restrict the cells of the chart of a sentence
+	 * @param chart an empty chart of the sentence
+	 * @param input a non empty list of words which represent the sentence
+	 */
+	void apply(Chart chart, List<String> input) {
+		int n = input.size();
+		boolean[][] open = classify(input);
+		int closed = 0;
+		int binarized = 0;
+		for (int len = 2; len < n; len++) {
+			for (int j = 0; j + len <= n; j++) {
+				int cell = chart.cell(j, j + len);
+				if (!open[BoundaryModel.END][j + len - 1]) {
+					chart.intersectAllowed(cell, m_arrNone);
+					closed++;
+				} else if (!open[BoundaryModel.BEGIN][j]) {
+					chart.intersectAllowed(cell, m_arrBinarized);
+					binarized++;
+				}
+			}
+		}
+		m_nCells.add(n * (n + 1) / 2);
+		m_nClosedCells.add(closed);
+		m_nBinarizedCells.add(binarized);
+	}
+
+	/**
+	 * Classify the words of a sentence of a gold standard, and count its constituents which the constraints keep
+	 * @param input the words of the sentence
+	 * @param goldBrackets the spans of the constituents of more than one word of the gold tree, except the whole sentence
+	 */
+	public void evaluate(List<String> input, List<int[]> goldBrackets) {
+		boolean[][] open = classify(input);
+		for (int[] span : goldBrackets)
+			if (open[BoundaryModel.BEGIN][span[0]] && open[BoundaryModel.END][span[1] - 1])
+				m_nKeptBrackets.increment();
+		m_nGoldBrackets.add(goldBrackets.size());
+	}
+
+	/**
+	 * @return the fraction of the cells of the decoded sentences which were closed
+	 */
+	public double getClosedRatio() {
+		long cells = m_nCells.sum();
+		return cells == 0 ? 0.0 : m_nClosedCells.sum() / (double) cells;
+	}
+
+	/**
+	 * @return the fraction of the cells of the decoded sentences which were restricted to binarized symbols
+	 */
+	public double getBinarizedRatio() {
+		long cells = m_nCells.sum();
+		return cells == 0 ? 0.0 : m_nBinarizedCells.sum() / (double) cells;
+	}
+
+	/**
+	 * @return the fraction of the evaluated gold constituents whose cell was left open
+	 */
+	public double getBracketRecall() {
+		long brackets = m_nGoldBrackets.sum();
+		return brackets == 0 ? 0.0 : m_nKeptBrackets.sum() / (double) brackets;
+	}
+}
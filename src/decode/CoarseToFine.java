@@ -0,0 +1,274 @@
+package decode;
+
+import grammar.Event;
+import grammar.Grammar;
+import grammar.Rule;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import train.Train;
+import utils.CountMap;
+
+/**
+ * CLASS: CoarseToFine
+ *
+ * Definition: a coarse pass which restricts the chart of the CKY algorithm before it is filled
+ * Role: project the markovized grammar onto its base symbols, parse with the (much smaller) projected
+ *       grammar, and allow in the fine chart only the items whose projection may be part of a good parse
+ * Responsibility: keep the projection between fine and coarse symbols, and compute the Viterbi
+ *                 inside and outside scores of the coarse chart
+ *
+ * The markovized symbols [..]@X of all the horizontal histories of X are collapsed into a single @X.
+ * The probabilities of the coarse rules are estimated from the summed counts of the fine rules projected
+ * onto them. An item (span, coarse symbol) is kept if the best coarse parse going through it is within
+ * the threshold of the best coarse parse of the sentence.
+ */
+public class CoarseToFine {
+
+	private final CompiledGrammar m_fineGrammar;
+	private final CompiledGrammar m_coarseGrammar;
+
+	// The coarse symbol of every fine symbol
+	private final int[] m_arrProjection;
+
+	// Bit sets of the fine symbols projected onto every coarse symbol
+	private final long[][] m_arrRefinements;
+
+	private final double m_dThreshold;
+
+	// The cells of the frequent words in the coarse grammar, null when disabled
+	private final WordCache m_wordCache;
+
+	// The coarse chart of every thread, reused for all the sentences it decodes
+	private final ThreadLocal<Chart> m_chartArena;
+
+	// Statistics of the coarse items seen and kept by the pass
+	private final AtomicLong m_nItems = new AtomicLong();
+	private final AtomicLong m_nItemsKept = new AtomicLong();
+
+	/**
+	 * @param g the fine grammar
+	 * @param fineGrammar the compiled fine grammar
+	 * @param threshold the maximal distance (in -LogProb) of a kept item from the best coarse parse
+	 * @param wordCache the word cache of the coarse grammar, or null
+	 * @param extraSymbols symbols which do not appear in the grammar but may be placed in the chart
+	 */
+	public CoarseToFine(Grammar g, CompiledGrammar fineGrammar, double threshold, WordCache wordCache,
+			String... extraSymbols) {
+		m_fineGrammar = fineGrammar;
+		m_coarseGrammar = new CompiledGrammar(projectGrammar(g), extraSymbols);
+		m_dThreshold = threshold;
+		m_wordCache = wordCache;
+		m_chartArena = ThreadLocal.withInitial(() -> new Chart(0, m_coarseGrammar.getSymbolCount()));
+
+		int fineCount = fineGrammar.getSymbolCount();
+		int coarseCount = m_coarseGrammar.getSymbolCount();
+		m_arrProjection = new int[fineCount];
+		m_arrRefinements = new long[coarseCount][(fineCount + 63) >>> 6];
+		for (int s = 0; s < fineCount; s++) {
+			int c = m_coarseGrammar.getSymbolNum(projectSymbol(fineGrammar.getSymbol(s)));
+			m_arrProjection[s] = c;
+			if (c != -1)
+				m_arrRefinements[c][s >>> 6] |= 1L << s;
+		}
+	}
+
+	/**
+	 * Collapse the horizontal history of a markovized symbol, e.g. [NN,JJ]@NP becomes @NP
+	 * @param symbol a symbol of the fine grammar
+	 * @return the symbol of the coarse grammar
+	 */
+	public static String projectSymbol(String symbol) {
+		int pos = symbol.lastIndexOf(Train.MARKOVIZATION_SYMBOL);
+		return pos <= 0 ? symbol : symbol.substring(pos);
+	}
+
+	/**
+	 * Build the coarse grammar by projecting the syntactic rules of the fine grammar and estimating
+	 * their probabilities by relative frequency. The lexicon is shared with the fine grammar
+	 * @param g the fine grammar
+	 * @return the coarse grammar
+	 */
+	public static Grammar projectGrammar(Grammar g) {
+		CountMap<Rule> ruleCounts = new CountMap<Rule>();
+		CountMap<Event> lhsCounts = new CountMap<Event>();
+		for (Map.Entry<Rule, Integer> e : g.getRuleCounts().entrySet()) {
+			Rule r = e.getKey();
+			if (r.isLexical())
+				continue;
+
+			StringBuffer sb = new StringBuffer();
+			for (String s : r.getRHS().getSymbols()) {
+				if (sb.length() > 0)
+					sb.append(" ");
+				sb.append(projectSymbol(s));
+			}
+			Rule coarseRule = new Rule(projectSymbol(r.getLHS().toString()), sb.toString());
+			ruleCounts.add(coarseRule, e.getValue());
+			lhsCounts.add(coarseRule.getLHS(), e.getValue());
+		}
+
+		Grammar coarse = new Grammar();
+		for (Map.Entry<Rule, Integer> e : ruleCounts.entrySet()) {
+			Rule r = e.getKey();
+			r.setMinusLogProb(
+					(-1) * Math.log(e.getValue() / lhsCounts.get(r.getLHS()).doubleValue()));
+			coarse.addRule(r);
+		}
+		coarse.setLexicalEntries(g.getLexicalEntries());
+		return coarse;
+	}
+
+	/**
+	 * Run the coarse pass over a sentence and restrict the cells of the fine chart to the refinements
+	 * of the coarse items that were kept
+	 * @param decoder the decoder used to fill the coarse chart
+	 * @param input the words of the sentence
+	 * @param fineChart the empty chart of the fine pass
+	 * @param startSymbol the start symbol
+	 * @param budget the budget of the sentence, or null for none. If it runs out during the coarse pass,
+	 *               the fine chart is not restricted
+	 * @return false if the coarse grammar has no parse for the sentence, in which case the fine
+	 *         grammar has none either
+	 */
+	boolean restrict(Decode decoder, List<String> input, Chart fineChart, String startSymbol, Budget budget) {
+		CompiledGrammar cg = m_coarseGrammar;
+		int n = input.size();
+		Chart chart = m_chartArena.get();
+		chart.reset(n);
+		decoder.fillChart(cg, m_wordCache, null, chart, input, 0, Double.POSITIVE_INFINITY, budget);
+		if (budget != null && budget.isExhausted())
+			return true;
+
+		int top = chart.cell(0, n);
+		int start = cg.getSymbolNum(startSymbol);
+		double goal = chart.getScore(top, start);
+		if (goal == Chart.EMPTY)
+			return false;
+
+		double[][] outside = computeOutside(chart, top, start);
+
+		// Keep the items whose best parse is within the threshold of the best parse
+		long items = 0;
+		long itemsKept = 0;
+		long[] allowed = fineChart.newSymbolSet();
+		for (int len = 1; len <= n; len++) {
+			for (int j = 0; j + len <= n; j++) {
+				int cell = chart.cell(j, j + len);
+				Arrays.fill(allowed, 0L);
+				double[] out = outside[cell];
+				if (out != null) {
+					double[] in = chart.getScores(cell);
+					int[] active = chart.getActive(cell);
+					for (int a = 0; a < chart.getActiveCount(cell); a++) {
+						int s = active[a];
+						items++;
+						if (in[s] + out[s] <= goal + m_dThreshold) {
+							itemsKept++;
+							long[] refinements = m_arrRefinements[s];
+							for (int w = 0; w < allowed.length; w++)
+								allowed[w] |= refinements[w];
+						}
+					}
+				}
+				fineChart.setAllowed(fineChart.cell(j, j + len), allowed);
+			}
+		}
+		m_nItems.addAndGet(items);
+		m_nItemsKept.addAndGet(itemsKept);
+		return true;
+	}
+
+	/**
+	 * Compute the Viterbi outside scores of a filled chart, going from the top cell down
+	 * @param chart the filled coarse chart
+	 * @param top the index of the top cell
+	 * @param start the start symbol
+	 * @return the outside scores per cell, null for cells which are not part of any parse
+	 */
+	private double[][] computeOutside(Chart chart, int top, int start) {
+		CompiledGrammar cg = m_coarseGrammar;
+		int n = chart.getLength();
+		int symbolCount = cg.getSymbolCount();
+		double[][] outside = new double[chart.getCellCount()][];
+		outside[top] = newOutside(symbolCount);
+		outside[top][start] = 0.0;
+
+		for (int len = n; len >= 1; len--) {
+			for (int j = 0; j + len <= n; j++) {
+				int i = j + len;
+				int cell = chart.cell(j, i);
+				double[] out = outside[cell];
+				if (out == null)
+					continue;
+
+				// The bottom symbols of unary chains get the outside score of the top symbols
+				int[] active = chart.getActive(cell);
+				int activeCount = chart.getActiveCount(cell);
+				for (int a = 0; a < activeCount; a++) {
+					int x = active[a];
+					for (int c = cg.m_arrClosureOffsets[x]; c < cg.m_arrClosureOffsets[x + 1]; c++) {
+						double o = out[cg.m_arrClosureParent[c]] + cg.m_arrClosureScore[c];
+						if (o < out[x])
+							out[x] = o;
+					}
+				}
+
+				// The children of binary rules get the outside score of the parent
+				for (int k = j + 1; k < i; k++) {
+					int leftCell = chart.cell(j, k);
+					int rightCell = chart.cell(k, i);
+					if (chart.isEmpty(leftCell) || chart.isEmpty(rightCell))
+						continue;
+					if (outside[leftCell] == null)
+						outside[leftCell] = newOutside(symbolCount);
+					if (outside[rightCell] == null)
+						outside[rightCell] = newOutside(symbolCount);
+					double[] leftOut = outside[leftCell];
+					double[] rightOut = outside[rightCell];
+					double[] leftIn = chart.getScores(leftCell);
+					double[] rightIn = chart.getScores(rightCell);
+
+					int[] leftActive = chart.getActive(leftCell);
+					int leftCount = chart.getActiveCount(leftCell);
+					for (int a = 0; a < leftCount; a++) {
+						int l = leftActive[a];
+						for (int b = cg.m_arrBinaryOffsets[l]; b < cg.m_arrBinaryOffsets[l + 1]; b++) {
+							double parentOut = out[cg.m_arrBinaryParent[b]];
+							int r = cg.m_arrBinaryRight[b];
+							if (parentOut == Chart.EMPTY || rightIn[r] == Chart.EMPTY)
+								continue;
+							double o = parentOut + cg.m_arrBinaryScore[b];
+							if (o + rightIn[r] < leftOut[l])
+								leftOut[l] = o + rightIn[r];
+							if (o + leftIn[l] < rightOut[r])
+								rightOut[r] = o + leftIn[l];
+						}
+					}
+				}
+			}
+		}
+		return outside;
+	}
+
+	private static double[] newOutside(int symbolCount) {
+		double[] out = new double[symbolCount];
+		Arrays.fill(out, Chart.EMPTY);
+		return out;
+	}
+
+	public CompiledGrammar getCoarseGrammar() {
+		return m_coarseGrammar;
+	}
+
+	/**
+	 * @return the fraction of the coarse items which were kept so far
+	 */
+	public double getKeptRatio() {
+		long items = m_nItems.get();
+		return items == 0 ? 1.0 : m_nItemsKept.get() / (double) items;
+	}
+}
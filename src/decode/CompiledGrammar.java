@@ -0,0 +1,324 @@
+package decode;
+
+import grammar.Grammar;
+import grammar.Rule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * CLASS: CompiledGrammar
+ *
+ * Definition: the syntactic rules of a Grammar in a form suited for the CKY algorithm
+ * Role: give every symbol and every rule a unique number and group the rules in flat primitive tables
+ * Responsibility: let the decoder apply rules without any hashing, string comparison or allocation
+ *
+ * The binary rules are grouped by their 1st rhs symbol: the rules whose left child is the symbol s are
+ * found at the positions m_arrBinaryOffsets[s] .. m_arrBinaryOffsets[s + 1] - 1 of the m_arrBinary* tables.
+ * The binary rules are also grouped by their 2nd rhs symbol in the m_arrRight* tables, for algorithms
+ * which extend items to the left, and by their lhs symbol in the m_arrParent* tables, for algorithms which
+ * compute a cell one parent at a time. The unary rules are grouped by their child in the same way.
+ *
+ * The unary closure holds, for every pair of symbols X and P such that P derives X through a chain of
+ * unary rules, the best such chain. It is grouped by X in the same way as well.
+ *
+ * The lexical rules are compiled into a Lexicon over the same symbol numbers.
+ */
+public class CompiledGrammar {
+
+	// Symbol numbering
+	private final Map<String, Integer> m_mapSymbolToNum = new HashMap<String, Integer>();
+	private final List<String> m_lstNumToSymbol = new ArrayList<String>();
+
+	// The rules by rule number. m_arrRuleRight is -1 for unary rules
+	final Rule[] m_arrRules;
+	final int[] m_arrRuleParent;
+	final int[] m_arrRuleLeft;
+	final int[] m_arrRuleRight;
+	final double[] m_arrRuleScore;
+
+	// Binary rules grouped by their left child
+	final int[] m_arrBinaryOffsets;
+	final int[] m_arrBinaryParent;
+	final int[] m_arrBinaryRight;
+	final double[] m_arrBinaryScore;
+	final int[] m_arrBinaryRule;
+
+	// Binary rules grouped by their right child
+	final int[] m_arrRightOffsets;
+	final int[] m_arrRightParent;
+	final int[] m_arrRightLeft;
+	final double[] m_arrRightScore;
+	final int[] m_arrRightRule;
+
+	// Binary rules grouped by their parent
+	final int[] m_arrParentOffsets;
+	final int[] m_arrParentLeft;
+	final int[] m_arrParentRight;
+	final double[] m_arrParentScore;
+	final int[] m_arrParentRule;
+
+	// Unary rules grouped by their child
+	final int[] m_arrUnaryOffsets;
+	final int[] m_arrUnaryParent;
+	final double[] m_arrUnaryScore;
+	final int[] m_arrUnaryRule;
+
+	// Unary closure grouped by the bottom symbol of the chain. m_arrClosureChain holds the rule numbers
+	// of every chain ordered from the top symbol down to the bottom one
+	final int[] m_arrClosureOffsets;
+	final int[] m_arrClosureChild;
+	final int[] m_arrClosureParent;
+	final double[] m_arrClosureScore;
+	final int[][] m_arrClosureChain;
+
+	// The pre-terminals of every word
+	private final Lexicon m_lexicon;
+
+	/**
+	 * Compile the syntactic rules of a grammar
+	 * @param g the grammar
+	 * @param extraSymbols symbols which do not appear in the grammar but may be placed in the chart
+	 */
+	public CompiledGrammar(Grammar g, String... extraSymbols) {
+		Set<Rule> rules = g.getSyntacticRules();
+		int ruleCount = rules.size();
+
+		m_arrRules = new Rule[ruleCount];
+		m_arrRuleParent = new int[ruleCount];
+		m_arrRuleLeft = new int[ruleCount];
+		m_arrRuleRight = new int[ruleCount];
+		m_arrRuleScore = new double[ruleCount];
+
+		int binaryCount = 0;
+		int num = 0;
+		for (Rule r : rules) {
+			List<String> rhs = r.getRHS().getSymbols();
+			m_arrRules[num] = r;
+			m_arrRuleParent[num] = addSymbol(r.getLHS().toString());
+			m_arrRuleLeft[num] = addSymbol(rhs.get(0));
+			m_arrRuleRight[num] = rhs.size() == 2 ? addSymbol(rhs.get(1)) : -1;
+			m_arrRuleScore[num] = r.getMinusLogProb();
+			if (rhs.size() == 2)
+				binaryCount++;
+			num++;
+		}
+
+		// Pre-terminals
+		for (Set<Rule> lexicalRules : g.getLexicalEntries().values())
+			for (Rule r : lexicalRules)
+				addSymbol(r.getLHS().toString());
+		for (String s : extraSymbols)
+			addSymbol(s);
+
+		int symbolCount = getSymbolCount();
+		m_arrBinaryOffsets = new int[symbolCount + 1];
+		m_arrBinaryParent = new int[binaryCount];
+		m_arrBinaryRight = new int[binaryCount];
+		m_arrBinaryScore = new double[binaryCount];
+		m_arrBinaryRule = new int[binaryCount];
+
+		m_arrRightOffsets = new int[symbolCount + 1];
+		m_arrRightParent = new int[binaryCount];
+		m_arrRightLeft = new int[binaryCount];
+		m_arrRightScore = new double[binaryCount];
+		m_arrRightRule = new int[binaryCount];
+
+		m_arrParentOffsets = new int[symbolCount + 1];
+		m_arrParentLeft = new int[binaryCount];
+		m_arrParentRight = new int[binaryCount];
+		m_arrParentScore = new double[binaryCount];
+		m_arrParentRule = new int[binaryCount];
+
+		m_arrUnaryOffsets = new int[symbolCount + 1];
+		m_arrUnaryParent = new int[ruleCount - binaryCount];
+		m_arrUnaryScore = new double[ruleCount - binaryCount];
+		m_arrUnaryRule = new int[ruleCount - binaryCount];
+
+		// Count the rules of every child, then turn the counts into offsets
+		for (int r = 0; r < ruleCount; r++) {
+			if (m_arrRuleRight[r] == -1)
+				m_arrUnaryOffsets[m_arrRuleLeft[r] + 1]++;
+			else {
+				m_arrBinaryOffsets[m_arrRuleLeft[r] + 1]++;
+				m_arrRightOffsets[m_arrRuleRight[r] + 1]++;
+				m_arrParentOffsets[m_arrRuleParent[r] + 1]++;
+			}
+		}
+		for (int s = 0; s < symbolCount; s++) {
+			m_arrBinaryOffsets[s + 1] += m_arrBinaryOffsets[s];
+			m_arrRightOffsets[s + 1] += m_arrRightOffsets[s];
+			m_arrParentOffsets[s + 1] += m_arrParentOffsets[s];
+			m_arrUnaryOffsets[s + 1] += m_arrUnaryOffsets[s];
+		}
+
+		int[] binaryNext = new int[symbolCount];
+		int[] rightNext = new int[symbolCount];
+		int[] parentNext = new int[symbolCount];
+		int[] unaryNext = new int[symbolCount];
+		for (int r = 0; r < ruleCount; r++) {
+			int left = m_arrRuleLeft[r];
+			if (m_arrRuleRight[r] == -1) {
+				int pos = m_arrUnaryOffsets[left] + unaryNext[left]++;
+				m_arrUnaryParent[pos] = m_arrRuleParent[r];
+				m_arrUnaryScore[pos] = m_arrRuleScore[r];
+				m_arrUnaryRule[pos] = r;
+			} else {
+				int pos = m_arrBinaryOffsets[left] + binaryNext[left]++;
+				m_arrBinaryParent[pos] = m_arrRuleParent[r];
+				m_arrBinaryRight[pos] = m_arrRuleRight[r];
+				m_arrBinaryScore[pos] = m_arrRuleScore[r];
+				m_arrBinaryRule[pos] = r;
+
+				int right = m_arrRuleRight[r];
+				pos = m_arrRightOffsets[right] + rightNext[right]++;
+				m_arrRightParent[pos] = m_arrRuleParent[r];
+				m_arrRightLeft[pos] = left;
+				m_arrRightScore[pos] = m_arrRuleScore[r];
+				m_arrRightRule[pos] = r;
+
+				int parent = m_arrRuleParent[r];
+				pos = m_arrParentOffsets[parent] + parentNext[parent]++;
+				m_arrParentLeft[pos] = left;
+				m_arrParentRight[pos] = right;
+				m_arrParentScore[pos] = m_arrRuleScore[r];
+				m_arrParentRule[pos] = r;
+			}
+		}
+
+		// Find the best unary chain from every symbol to all the symbols above it
+		List<int[]> closureChains = new ArrayList<int[]>();
+		List<Double> closureScores = new ArrayList<Double>();
+		m_arrClosureOffsets = new int[symbolCount + 1];
+		double[] dist = new double[symbolCount];
+		int[] bestRule = new int[symbolCount];
+		Arrays.fill(dist, Double.POSITIVE_INFINITY);
+		for (int s = 0; s < symbolCount; s++) {
+			m_arrClosureOffsets[s] = closureChains.size();
+			if (m_arrUnaryOffsets[s] == m_arrUnaryOffsets[s + 1])
+				continue;
+
+			List<Integer> reached = findUnaryChains(s, dist, bestRule);
+			for (int p : reached) {
+				if (p == s)
+					continue;
+				// Walk down from the top of the chain to get its rules in order
+				List<Integer> chain = new ArrayList<Integer>();
+				for (int x = p; x != s; x = m_arrRuleLeft[bestRule[x]])
+					chain.add(bestRule[x]);
+				int[] arrChain = new int[chain.size()];
+				for (int c = 0; c < arrChain.length; c++)
+					arrChain[c] = chain.get(c);
+				closureChains.add(arrChain);
+				closureScores.add(dist[p]);
+			}
+			for (int p : reached)
+				dist[p] = Double.POSITIVE_INFINITY;
+		}
+		m_arrClosureOffsets[symbolCount] = closureChains.size();
+
+		int closureCount = closureChains.size();
+		m_arrClosureChild = new int[closureCount];
+		m_arrClosureParent = new int[closureCount];
+		m_arrClosureScore = new double[closureCount];
+		m_arrClosureChain = closureChains.toArray(new int[closureCount][]);
+		for (int s = 0; s < symbolCount; s++) {
+			for (int c = m_arrClosureOffsets[s]; c < m_arrClosureOffsets[s + 1]; c++) {
+				m_arrClosureChild[c] = s;
+				m_arrClosureParent[c] = m_arrRuleParent[m_arrClosureChain[c][0]];
+				m_arrClosureScore[c] = closureScores.get(c);
+			}
+		}
+
+		m_lexicon = new Lexicon(g.getLexicalEntries(), this);
+	}
+
+	/**
+	 * Dijkstra's algorithm over the unary rules, going up from a symbol to its parents
+	 * @param source the bottom symbol
+	 * @param dist the best chain score of every symbol, all infinite on entry
+	 * @param bestRule the last rule applied by the best chain of every reached symbol
+	 * @return the symbols reached from the source, the source included
+	 */
+	private List<Integer> findUnaryChains(int source, double[] dist, int[] bestRule) {
+		List<Integer> reached = new ArrayList<Integer>();
+		PriorityQueue<double[]> queue = new PriorityQueue<double[]>(11, (x, y) -> Double.compare(x[0], y[0]));
+		dist[source] = 0.0;
+		reached.add(source);
+		queue.add(new double[] {0.0, source});
+		while (!queue.isEmpty()) {
+			double[] top = queue.poll();
+			int s = (int) top[1];
+			if (top[0] > dist[s])
+				continue;
+			for (int u = m_arrUnaryOffsets[s]; u < m_arrUnaryOffsets[s + 1]; u++) {
+				int p = m_arrUnaryParent[u];
+				double d = top[0] + m_arrUnaryScore[u];
+				if (d < dist[p]) {
+					if (dist[p] == Double.POSITIVE_INFINITY)
+						reached.add(p);
+					dist[p] = d;
+					bestRule[p] = m_arrUnaryRule[u];
+					queue.add(new double[] {d, p});
+				}
+			}
+		}
+		return reached;
+	}
+
+	private int addSymbol(String symbol) {
+		Integer num = m_mapSymbolToNum.get(symbol);
+		if (num == null) {
+			num = m_lstNumToSymbol.size();
+			m_mapSymbolToNum.put(symbol, num);
+			m_lstNumToSymbol.add(symbol);
+		}
+		return num;
+	}
+
+	public int getSymbolCount() {
+		return m_lstNumToSymbol.size();
+	}
+
+	public int getRuleCount() {
+		return m_arrRules.length;
+	}
+
+	/**
+	 * Get the number of a symbol
+	 * @param symbol the symbol
+	 * @return the number of the symbol, or -1 if the grammar does not know it
+	 */
+	public int getSymbolNum(String symbol) {
+		Integer num = m_mapSymbolToNum.get(symbol);
+		return num == null ? -1 : num;
+	}
+
+	public String getSymbol(int num) {
+		return m_lstNumToSymbol.get(num);
+	}
+
+	public Rule getRule(int num) {
+		return m_arrRules[num];
+	}
+
+	public Lexicon getLexicon() {
+		return m_lexicon;
+	}
+
+	/**
+	 * Add a symbol, and the symbols above it through chains of unary rules, to a bit set of symbols
+	 * @param set a bit set as returned by Chart.newSymbolSet
+	 * @param symbol the number of the symbol
+	 */
+	void addWithClosure(long[] set, int symbol) {
+		set[symbol >>> 6] |= 1L << symbol;
+		for (int c = m_arrClosureOffsets[symbol]; c < m_arrClosureOffsets[symbol + 1]; c++)
+			set[m_arrClosureParent[c] >>> 6] |= 1L << m_arrClosureParent[c];
+	}
+}
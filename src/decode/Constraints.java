@@ -0,0 +1,189 @@
+package decode;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CLASS: Constraints
+ *
+ * Definition: partial bracketing of a sentence, known before it is parsed
+ * Role: let the components which run before the parser (named entities, chunks, punctuation rules) tell the
+ *       decoder which spans must or must not be constituents, so that it never fills cells which can not be
+ *       in the answer
+ * Responsibility: hold the constraints of a single sentence, turn them into restrictions of the cells of its
+ *                 chart, and count the cells they removed
+ *
+ * The spans are given by the position of their first word and of the word after their last (0-based):
+ * - a required bracket is a constituent of the parse. No span crossing it is computed, and the symbols
+ *   added by the binarization are only kept in its cell above a symbol which is not, through unary rules
+ * - a forbidden bracket is not a constituent of the parse. Its cell only holds binarized symbols, which are
+ *   spliced out of the parse
+ * - a forbidden crossing is a span which no constituent crosses, though it need not be a constituent itself
+ * - a fixed pre-terminal restricts the tags of a word, and of the unary chains above it, to the given ones
+ * A split point whose left or right cell was removed is never considered, as that cell stays empty.
+ */
+public class Constraints {
+
+	private final List<int[]> m_lstRequired = new ArrayList<int[]>();
+	private final List<int[]> m_lstForbidden = new ArrayList<int[]>();
+	private final List<int[]> m_lstCrossings = new ArrayList<int[]>();
+	private final Map<Integer, String[]> m_mapPreterminals = new HashMap<Integer, String[]>();
+
+	// The number of cells the constraints closed in the last chart they were applied to
+	private int m_nRemovedCells = 0;
+
+	// Whether the decoder may ignore the constraints when no parse satisfies them, and whether it did for the
+	// last sentence they were given with
+	private boolean m_bRelaxable = false;
+	private boolean m_bRelaxed = false;
+
+	/**
+	 * @param start the position of the first word of the span
+	 * @param end the position after the last word of the span
+	 */
+	public void requireBracket(int start, int end) {
+		m_lstRequired.add(new int[] {start, end});
+	}
+
+	/**
+	 * @param start the position of the first word of the span, which must have at least two words
+	 * @param end the position after the last word of the span
+	 */
+	public void forbidBracket(int start, int end) {
+		m_lstForbidden.add(new int[] {start, end});
+	}
+
+	/**
+	 * @param start the position of the first word of the span
+	 * @param end the position after the last word of the span
+	 */
+	public void forbidCrossing(int start, int end) {
+		m_lstCrossings.add(new int[] {start, end});
+	}
+
+	/**
+	 * @param position the position of the word
+	 * @param tags the pre-terminals the word may be tagged with
+	 */
+	public void fixPreterminal(int position, String... tags) {
+		m_mapPreterminals.put(position, tags);
+	}
+
+	/**
+	 * Let the decoder parse the sentence without the constraints when no parse satisfies them, instead of
+	 * finding no parse. They are hard constraints by default
+	 * @param relaxable whether the constraints may be ignored
+	 */
+	public void setRelaxable(boolean relaxable) {
+		m_bRelaxable = relaxable;
+	}
+
+	public boolean isRelaxable() {
+		return m_bRelaxable;
+	}
+
+	/**
+	 * @return whether no parse of the last sentence satisfied the constraints, so that it was parsed without them
+	 */
+	public boolean isRelaxed() {
+		return m_bRelaxed;
+	}
+
+	void setRelaxed(boolean relaxed) {
+		m_bRelaxed = relaxed;
+	}
+
+	public boolean isEmpty() {
+		return m_lstRequired.isEmpty() && m_lstForbidden.isEmpty() && m_lstCrossings.isEmpty() && m_mapPreterminals.isEmpty();
+	}
+
+	/**
+	 * @return the number of cells which the constraints removed from the chart of their sentence, on top of
+	 *         those removed by the coarse pass if any
+	 */
+	public int getRemovedCells() {
+		return m_nRemovedCells;
+	}
+
+	/**
+	 * Restrict the cells of an empty chart
+	 * @param decoder the decoder, which tells the binarized symbols
+	 * @param cg the grammar of the chart
+	 * @param chart the chart of the sentence
+	 * @param n the number of words of the sentence
+	 * @return the number of cells removed
+	 * @throws IllegalArgumentException if a span is not in the sentence, a forbidden bracket is a single word or the
+	 *                                  whole sentence, or a pre-terminal is not in the grammar
+	 */
+	int apply(Decode decoder, CompiledGrammar cg, Chart chart, int n) {
+		int closedBefore = countClosed(chart, n);
+		long[] none = chart.newSymbolSet();
+		long[] binarized = chart.newSymbolSet();
+		for (int s = 0; s < cg.getSymbolCount(); s++)
+			if (decoder.isBinarized(s))
+				binarized[s >>> 6] |= 1L << s;
+
+		for (int[] span : m_lstRequired) {
+			check(span, n);
+			closeCrossing(chart, n, span, none);
+			chart.setConstituent(chart.cell(span[0], span[1]));
+		}
+		for (int[] span : m_lstCrossings) {
+			check(span, n);
+			closeCrossing(chart, n, span, none);
+		}
+		for (int[] span : m_lstForbidden) {
+			check(span, n);
+			if (span[1] - span[0] < 2 || span[1] - span[0] == n)
+				throw new IllegalArgumentException("A single word or the whole sentence can not be a forbidden bracket: " +
+						span[0] + ".." + span[1]);
+			chart.intersectAllowed(chart.cell(span[0], span[1]), binarized);
+		}
+		for (Map.Entry<Integer, String[]> e : m_mapPreterminals.entrySet()) {
+			int position = e.getKey();
+			check(new int[] {position, position + 1}, n);
+
+			// The tags, and the symbols above them through unary chains
+			long[] allowed = chart.newSymbolSet();
+			for (String tag : e.getValue()) {
+				int symbol = cg.getSymbolNum(tag);
+				if (symbol == -1)
+					throw new IllegalArgumentException("Unknown pre-terminal: " + tag);
+				cg.addWithClosure(allowed, symbol);
+			}
+			chart.intersectAllowed(chart.cell(position, position + 1), allowed);
+		}
+
+		m_nRemovedCells = countClosed(chart, n) - closedBefore;
+		return m_nRemovedCells;
+	}
+
+	private static void check(int[] span, int n) {
+		if (span[0] < 0 || span[1] > n || span[0] >= span[1])
+			throw new IllegalArgumentException("The span " + span[0] + ".." + span[1] + " is not in a sentence of " + n + " words");
+	}
+
+	// Close every cell which crosses the span: it starts inside the span and ends after it, or starts
+	// before it and ends inside it
+	private static void closeCrossing(Chart chart, int n, int[] span, long[] none) {
+		for (int j = 0; j < n; j++) {
+			for (int i = j + 2; i <= n; i++) {
+				boolean startsInside = span[0] < j && j < span[1] && i > span[1];
+				boolean endsInside = j < span[0] && span[0] < i && i < span[1];
+				if ((startsInside || endsInside) && !chart.isClosed(chart.cell(j, i)))
+					chart.intersectAllowed(chart.cell(j, i), none);
+			}
+		}
+	}
+
+	private static int countClosed(Chart chart, int n) {
+		int closed = 0;
+		for (int j = 0; j < n; j++)
+			for (int i = j + 1; i <= n; i++)
+				if (chart.isClosed(chart.cell(j, i)))
+					closed++;
+		return closed;
+	}
+}
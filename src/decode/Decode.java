@@ -1,162 +1,663 @@
 package decode;
 
+import grammar.BoundaryModel;
 import grammar.Grammar;
 import grammar.Rule;
+import grammar.TagModel;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import parse.Parse;
-import train.Pair;
 import tree.Node;
 import tree.Terminal;
 import tree.Tree;
 
+import train.Train;
+
+/**
+ * A decoder owns a snapshot of the grammar it was created with, taken when it is created, so it is not
+ * affected by later changes to the Grammar object. A decoder may be shared by any number of threads:
+ * decoding only reads the snapshot and keeps its state in per-sentence objects. The settings are read once
+ * per sentence, so a setter called while sentences are decoded only applies to the sentences started after
+ * it. The decoder returned by getInstance can not be configured at all.
+ * Decoders of different grammars may be used side by side.
+ */
 public class Decode {
 
-	public static Set<Rule> m_setGrammarRules = null;
-	public static Map<String, Set<Rule>> m_mapLexicalRules = null;
+	private final Grammar m_grammar;
+	private final Set<Rule> m_setGrammarRules;
+	private final Map<String, Set<Rule>> m_mapLexicalRules;
+
+	// The syntactic rules with numbered symbols, grouped in flat tables by their rhs symbols
+	private final CompiledGrammar m_compiledGrammar;
+
+	// The symbol at the root of every parse
+	public static final String START_VARIABLE = "S";
+
+	// Pruning of the chart cells. A beam size of 0 and an infinite threshold mean exhaustive search
+	private volatile int m_nBeamSize = 0;
+	private volatile double m_dBeamThreshold = Double.POSITIVE_INFINITY;
+
+	// When a pruned search finds no parse, it is repeated with a beam wider by BEAM_WIDENING
+	// up to BEAM_RETRIES times, and finally without pruning at all
+	private static final int BEAM_RETRIES = 2;
+	private static final int BEAM_WIDENING = 4;
+	private final AtomicInteger m_nBeamRetries = new AtomicInteger();
+
+	// Coarse-to-fine pruning, null when disabled. When the restricted fine pass finds no parse,
+	// the sentence is decoded again without the coarse pass
+	private volatile CoarseToFine m_coarseToFine = null;
+	private final AtomicInteger m_nCoarseToFineRetries = new AtomicInteger();
+
+	// The tagging pass which keeps only the likely tags of every word before the chart is filled, null when
+	// disabled. When the restricted chart holds no parse, the sentence is decoded again with all the tags
+	private volatile Tagger m_tagger = null;
+	private final AtomicInteger m_nTaggerRetries = new AtomicInteger();
+
+	// The chart constraints, which close the cells that can not be constituents before the chart is filled,
+	// null when disabled. When the restricted chart holds no parse, the sentence is decoded again without them
+	private volatile ChartConstraints m_chartConstraints = null;
+	private final AtomicInteger m_nChartConstraintRetries = new AtomicInteger();
+
+	// The boolean recognizer which restricts the chart to the items of some parse before the Viterbi pass
+	// when m_bRecognize is set, and tells whether a sentence has a parse at all. Built when first needed
+	private volatile Recognizer m_recognizer = null;
+	private volatile boolean m_bRecognize = false;
+
+	// A* search in place of the CKY algorithm, null when disabled
+	private volatile AStar m_aStar = null;
+
+	// Parallelism inside a sentence: the cells of the same span length are filled in parallel on
+	// m_wavefrontPool for sentences of at least m_nWavefrontLength words. The pool is null when disabled
+	private volatile ForkJoinPool m_wavefrontPool = null;
+	private volatile int m_nWavefrontLength = Integer.MAX_VALUE;
+	private volatile boolean m_bSplitCells = false;
+	private final AtomicInteger m_nWavefrontCharts = new AtomicInteger();
+
+	// The binary step of the CKY algorithm over all the split points of a cell at once, null for the
+	// scalar loops of addBinaryRules
+	private volatile BlockedKernel m_blockedKernel = null;
+
+	// The symbols added by the binarization, whose nodes are spliced out of the output trees
+	private final boolean[] m_arrBinarizedSymbols;
+
+	// The bounds on the cells in which every symbol can be found in a parse, and whether the chart of every
+	// sentence is restricted by them
+	private final GrammarAnalysis m_grammarAnalysis;
+	private volatile boolean m_bGrammarFilter = false;
+
+	// The cells of the frequent words, shared by all the threads. Null when disabled
+	private static final int DEFAULT_WORD_CACHE_SIZE = 50000;
+	private volatile WordCache m_wordCache = new WordCache(DEFAULT_WORD_CACHE_SIZE);
+
+	// The cells of short frequent word sequences, shared by all the threads. Null when disabled
+	private volatile SpanCache m_spanCache = null;
+
+	// The chart of every thread, reused for all the sentences it decodes
+	private final ThreadLocal<Chart> m_chartArena;
+
+	// The number of parent symbols computed by a single task when a cell is split
+	private static final int PARENTS_PER_TASK = 64;
+
+	// The time (in milliseconds) and work (in cells) the decoder may spend on a sentence, 0 for no limit.
+	// When a sentence runs out of its budget, the cells its chart did not reach are filled with a narrow beam
+	// on the reserve of the budget, and if that runs out too its best constituents are put together under TOP
+	private volatile long m_nTimeLimit = 0;
+	private volatile long m_nWorkLimit = 0;
+	private static final int FALLBACK_BEAM_SIZE = 4;
+	private final AtomicInteger m_nBudgetExceeded = new AtomicInteger();
+	private final AtomicInteger m_nFallbackParses = new AtomicInteger();
+	private final AtomicInteger m_nFragmentParses = new AtomicInteger();
+
+	// Statistics of the partial bracketing passed to the decoder
+	private final AtomicLong m_nConstrainedCells = new AtomicLong();
+	private final AtomicInteger m_nConstraintRetries = new AtomicInteger();
 
-	// A mapping from a string to a set of rules in which the rhs is equal to the string
-	public static Map<String, Set<Rule>> m_mapGrammarRules = null;
+    /**
+     * One decoder per grammar
+     * Avoids redundant instances in memory 
+     */
+	private static final Map<Grammar, Decode> m_mapDecoders = new IdentityHashMap<Grammar, Decode>();
 
-	// A mapping from a string to a set of unary rules in which the rhs is equal to the string
-	public static Map<String, Set<Rule>> m_mapUnaryRules = null;
+	// Whether this is the decoder returned by getInstance, whose settings can not be changed
+	private final boolean m_bShared;
 
-	// A mapping from a string to a set of binary rules in which the rhs' 1st symbol is equal to the string
-	public static Map<String, Set<Rule>> m_mapLeftSymbolBinaryRules = null;
+	/**
+	 * @param g the grammar
+	 * @return the decoder shared by all the callers of the grammar. It keeps the default settings (exhaustive
+	 *         CKY search, word cache), and its setters throw IllegalStateException, so that no caller changes
+	 *         the decoding of another. A decoder with other settings is created with new Decode(g)
+	 */
+	public static Decode getInstance(Grammar g)
+	{
+		synchronized (m_mapDecoders)
+		{
+			Decode decoder = m_mapDecoders.get(g);
+			if (decoder == null)
+			{
+				decoder = new Decode(g, true);
+				m_mapDecoders.put(g, decoder);
+			}
+			return decoder;
+		}
+	}
 
-	// A mapping from a string to a set of binary rules in which the rhs' 2nd symbol is equal to the string
-	public static Map<String, Set<Rule>> m_mapRightSymbolBinaryRules = null;
+	/**
+	 * Create a decoder of its own, whose settings may be changed
+	 * @param g the grammar
+	 */
+	public Decode(Grammar g)
+	{
+		this(g, false);
+	}
 
-	// Counter for the number of rules
-	public static int ruleCount = 0;
+	private Decode(Grammar g, boolean shared)
+	{
+		m_bShared = shared;
+		m_setGrammarRules = Collections.unmodifiableSet(new HashSet<Rule>(g.getSyntacticRules()));
+		Map<String, Set<Rule>> lexicalRules = new HashMap<String, Set<Rule>>();
+		for (Map.Entry<String, Set<Rule>> e : g.getLexicalEntries().entrySet())
+			lexicalRules.put(e.getKey(), Collections.unmodifiableSet(new HashSet<Rule>(e.getValue())));
+		m_mapLexicalRules = Collections.unmodifiableMap(lexicalRules);
+
+		// The copy the rest of the decoder is built from
+		m_grammar = new Grammar();
+		m_grammar.setSyntacticRules(m_setGrammarRules);
+		m_grammar.setLexicalEntries(m_mapLexicalRules);
+		m_grammar.getRuleCounts().putAll(g.getRuleCounts());
+
+		m_compiledGrammar = new CompiledGrammar(m_grammar, "CD", "NNP", START_VARIABLE);
+		m_arrBinarizedSymbols = new boolean[m_compiledGrammar.getSymbolCount()];
+		for (int s = 0; s < m_arrBinarizedSymbols.length; s++)
+			m_arrBinarizedSymbols[s] = m_compiledGrammar.getSymbol(s).contains(Train.MARKOVIZATION_SYMBOL);
+		m_grammarAnalysis = new GrammarAnalysis(m_compiledGrammar, m_compiledGrammar.getSymbolNum(START_VARIABLE));
+		m_chartArena = ThreadLocal.withInitial(() -> new Chart(0, m_compiledGrammar.getSymbolCount()));
+	}
 
-	// The following two maps are used to give every rule a unique number
-	// this way, string comparison is avoided in order to improve performance
-	public static Map<Rule, Integer> m_mapRuleToNum = null;
-	public static Map<Integer, Rule> m_mapNumToRule = null;
+	private void checkConfigurable()
+	{
+		if (m_bShared)
+			throw new IllegalStateException("The shared decoder of a grammar can not be configured, use new Decode(grammar)");
+	}
 
+	public CompiledGrammar getCompiledGrammar()
+	{
+		return m_compiledGrammar;
+	}
 
-	private final double MAX_PROBABILITY = 0.0;
-	private final String START_VARIABLE = "S";
+	/**
+	 * Set the pruning of the chart cells
+	 * @param beamSize the maximal number of symbols kept in a cell, or 0 for no limit
+	 * @param threshold the maximal distance (in -LogProb) of a kept symbol from the best symbol
+	 *                  of its cell, or Double.POSITIVE_INFINITY for no limit
+	 */
+	public void setBeam(int beamSize, double threshold)
+	{
+		checkConfigurable();
+		m_nBeamSize = beamSize;
+		m_dBeamThreshold = threshold;
+	}
 
-    /**
-     * Implementation of a singleton pattern
-     * Avoids redundant instances in memory 
-     */
-	public static Decode m_singDecoder = null;
-	    
-	public static Decode getInstance(Grammar g)
+	/**
+	 * @return the number of times a pruned search found no parse and was repeated with a wider beam
+	 */
+	public int getBeamRetries()
 	{
-		if (m_singDecoder == null)
-		{
-			m_singDecoder = new Decode();
-			m_setGrammarRules = g.getSyntacticRules();
-			m_mapLexicalRules = g.getLexicalEntries();
-
-			m_mapUnaryRules = new HashMap<String, Set<Rule>>();
-			m_mapLeftSymbolBinaryRules = new HashMap<String, Set<Rule>>();
-			m_mapRightSymbolBinaryRules = new HashMap<String, Set<Rule>>();
-			m_mapGrammarRules = new HashMap<String, Set<Rule>>();
-
-			m_mapRuleToNum = new HashMap<Rule, Integer>();
-			m_mapNumToRule = new HashMap<Integer, Rule>();
-
-			// Populate all the HashMaps that will be used in processing
-			for(Rule r: m_setGrammarRules){
-				m_mapRuleToNum.put(r, ruleCount);
-				m_mapNumToRule.put(ruleCount, r);
-
-				// Check if this is a binary rule
-				if(r.getRHS().getSymbols().size() == 2){
-					String firstSymbol = r.getRHS().getSymbols().get(0);
-					Set s = m_mapLeftSymbolBinaryRules.get(firstSymbol);
-					if(s == null) {
-						Set<Rule> ruleSet = new HashSet<Rule>();
-						ruleSet.add(r);
-						m_mapLeftSymbolBinaryRules.put(firstSymbol, ruleSet);
-					} else {
-						s.add(r);
-					}
+		return m_nBeamRetries.get();
+	}
 
-					String secondSymbol = r.getRHS().getSymbols().get(1);
-					s = m_mapRightSymbolBinaryRules.get(secondSymbol);
-					if(s == null) {
-						Set<Rule> ruleSet = new HashSet<Rule>();
-						ruleSet.add(r);
-						m_mapRightSymbolBinaryRules.put(secondSymbol, ruleSet);
-					} else {
-						s.add(r);
-					}
-				}
+	/**
+	 * Set the size of the cache of the cells of frequent words
+	 * @param maxWords the maximal number of words kept by the cache, or 0 to disable it
+	 */
+	public void setWordCache(int maxWords)
+	{
+		checkConfigurable();
+		m_wordCache = maxWords > 0 ? new WordCache(maxWords) : null;
+	}
 
-				Set s = m_mapGrammarRules.get(r.getRHS().toString());
-				if(s == null) {
-					Set<Rule> ruleSet = new HashSet<Rule>();
-					ruleSet.add(r);
-					m_mapGrammarRules.put(r.getRHS().toString(), ruleSet);
-					if(r.getRHS().getSymbols().size() == 1)
-						m_mapUnaryRules.put(r.getRHS().toString(), ruleSet);
-				} else{
-					s.add(r);
-					if(r.getRHS().getSymbols().size() == 1)
-						m_mapUnaryRules.get(r.getRHS().toString()).add(r);
-				}
+	public WordCache getWordCache()
+	{
+		return m_wordCache;
+	}
+
+	/**
+	 * Enable the cache of the cells of short word sequences. It is only used when the chart is neither
+	 * pruned nor restricted, so that it never changes the result
+	 * @param maxLength the maximal number of words of a cached sequence
+	 * @param maxBytes the estimated memory of the cache, beyond which sequences are evicted
+	 */
+	public void setSpanCache(int maxLength, long maxBytes)
+	{
+		checkConfigurable();
+		m_spanCache = new SpanCache(maxLength, maxBytes);
+	}
+
+	public SpanCache getSpanCache()
+	{
+		return m_spanCache;
+	}
+
+	/**
+	 * @return true if the symbol was added by the binarization, so its nodes are spliced out of the output trees
+	 */
+	boolean isBinarized(int symbol)
+	{
+		return m_arrBinarizedSymbols[symbol];
+	}
+
+	/**
+	 * Start an incremental parse, to which the words of a sentence are fed one at a time
+	 * @return a new session, which is used by a single thread
+	 */
+	public ParserSession newSession()
+	{
+		return new ParserSession(this, m_compiledGrammar, m_wordCache, m_spanCache, START_VARIABLE);
+	}
+
+	/**
+	 * Enable coarse-to-fine decoding: every sentence is first parsed with the grammar projected onto the
+	 * base symbols, and the fine pass only considers the items whose projection was kept by it
+	 * @param threshold the maximal distance (in -LogProb) from the best coarse parse of the best coarse
+	 *                  parse through a kept item
+	 */
+	public void setCoarseToFine(double threshold)
+	{
+		checkConfigurable();
+		m_coarseToFine = new CoarseToFine(m_grammar, m_compiledGrammar, threshold,
+				m_wordCache == null ? null : new WordCache(DEFAULT_WORD_CACHE_SIZE), "CD", "NNP", START_VARIABLE);
+	}
+
+	public CoarseToFine getCoarseToFine()
+	{
+		return m_coarseToFine;
+	}
+
+	/**
+	 * @return the number of times the fine pass found no parse among the items kept by the coarse pass
+	 */
+	public int getCoarseToFineRetries()
+	{
+		return m_nCoarseToFineRetries.get();
+	}
+
+	/**
+	 * Enable or disable the grammar filter, which is disabled by default: before the chart of a sentence is
+	 * filled, its cells are restricted to the symbols whose yield length, corners and context, as found by the
+	 * GrammarAnalysis of the grammar, allow them there. The filter only removes items which can not be part of
+	 * a parse, so it never changes the result of an exhaustive search. As the restrictions of a cell depend on
+	 * its position in the sentence, the span cache is not used while the filter is enabled
+	 * @param enabled whether the filter is applied
+	 */
+	public void setGrammarFilter(boolean enabled)
+	{
+		checkConfigurable();
+		m_bGrammarFilter = enabled;
+	}
+
+	public GrammarAnalysis getGrammarAnalysis()
+	{
+		return m_grammarAnalysis;
+	}
+
+	public boolean isGrammarFilter()
+	{
+		return m_bGrammarFilter;
+	}
+
+	/**
+	 * Enable the tagging pass: a trigram tagger runs over every sentence before its chart is filled, and the
+	 * cells of the words only keep the tags whose posterior probability is within the margin of the best one
+	 * @param model the trigram model of the pre-terminals, as trained by Train.trainTagger
+	 * @param margin the maximal distance (in -LogProb) of the posterior of a kept tag from the best tag of its word
+	 */
+	public void setTagger(TagModel model, double margin)
+	{
+		checkConfigurable();
+		m_tagger = new Tagger(model, m_compiledGrammar, margin);
+	}
+
+	public Tagger getTagger()
+	{
+		return m_tagger;
+	}
+
+	/**
+	 * @return the number of times the tags kept by the tagging pass allowed no parse
+	 */
+	public int getTaggerRetries()
+	{
+		return m_nTaggerRetries.get();
+	}
+
+	/**
+	 * Enable the chart constraints: classifiers of the words of every sentence tell which of them may begin
+	 * and end a constituent, and the cells which can not be constituents are closed before the chart is filled
+	 * @param model the classifiers, as trained by Train.trainBoundaries
+	 * @param margin the distance below 0 of the lowest score of a word which still begins or ends a
+	 *               constituent. Higher margins close fewer cells
+	 */
+	public void setChartConstraints(BoundaryModel model, double margin)
+	{
+		checkConfigurable();
+		m_chartConstraints = new ChartConstraints(model, this, m_compiledGrammar, margin);
+	}
+
+	public ChartConstraints getChartConstraints()
+	{
+		return m_chartConstraints;
+	}
+
+	/**
+	 * @return the number of times the cells left open by the chart constraints held no parse
+	 */
+	public int getChartConstraintRetries()
+	{
+		return m_nChartConstraintRetries.get();
+	}
+
+	/**
+	 * Enable the recognizer pre-pass: the chart of every sentence is first filled over the boolean semiring,
+	 * and its cells are restricted to the items which are derivable from the words and reachable from the
+	 * start symbol. A sentence with no parse is found there, without filling its chart or widening the beam
+	 */
+	public void setRecognizer()
+	{
+		checkConfigurable();
+		getRecognizer();
+		m_bRecognize = true;
+	}
+
+	public synchronized Recognizer getRecognizer()
+	{
+		if(m_recognizer == null)
+			m_recognizer = new Recognizer(this, m_compiledGrammar);
+		return m_recognizer;
+	}
+
+	/**
+	 * Tell whether a sentence has any parse in the grammar, without filling its chart
+	 * @param input a non empty list of words which represent the sentence
+	 * @return true if the start symbol is derivable over the whole sentence
+	 */
+	public boolean isParsable(List<String> input)
+	{
+		Chart chart = m_chartArena.get();
+		chart.reset(input.size());
+		return getRecognizer().isParsable(chart, input, m_compiledGrammar.getSymbolNum(START_VARIABLE));
+	}
+
+	/**
+	 * Enable A* decoding: the chart is filled best-first and the search stops as soon as the best parse
+	 * is found. The pruning of the chart cells does not apply to it
+	 */
+	public void setAStar()
+	{
+		checkConfigurable();
+		m_aStar = new AStar(m_grammar, m_compiledGrammar, START_VARIABLE, "CD", "NNP");
+	}
+
+	public AStar getAStar()
+	{
+		return m_aStar;
+	}
+
+	/**
+	 * Enable the wavefront mode of the CKY algorithm for long sentences: the chart is filled one span
+	 * length at a time, and the cells of every span length are filled in parallel
+	 * @param minLength the minimal length of a sentence filled in wavefront mode
+	 * @param parallelism the number of threads of the fork-join pool
+	 * @param splitCells if true, the binary rules of a cell are also split between tasks by parent symbol
+	 *                   once there are fewer cells of a span length than threads
+	 */
+	public void setWavefront(int minLength, int parallelism, boolean splitCells)
+	{
+		checkConfigurable();
+		ForkJoinPool previous = m_wavefrontPool;
+		m_wavefrontPool = new ForkJoinPool(parallelism);
+		m_nWavefrontLength = minLength;
+		m_bSplitCells = splitCells;
+		if(previous != null)
+			previous.shutdown();
+	}
+
+	/**
+	 * @return the number of charts filled in wavefront mode
+	 */
+	public int getWavefrontCharts()
+	{
+		return m_nWavefrontCharts.get();
+	}
+
+	/**
+	 * Choose the kernel of the binary step of the CKY algorithm. The blocked kernel computes every rule over all
+	 * the split points of a cell in loops over contiguous arrays, which the JIT compiler vectorizes. Both
+	 * kernels give exactly the same chart
+	 * @param blocked true for the blocked kernel, false for the scalar loops of addBinaryRules
+	 */
+	public void setBlockedKernel(boolean blocked)
+	{
+		checkConfigurable();
+		m_blockedKernel = blocked ? new BlockedKernel() : null;
+	}
+
+	public boolean isBlockedKernel()
+	{
+		return m_blockedKernel != null;
+	}
+
+	/**
+	 * Limit the time and work spent on every sentence. A quarter of the limits is held back, and when a
+	 * sentence runs out of the rest, the cells of its chart which were not reached are filled with a narrow
+	 * beam on that reserve. The cells already computed are kept, so a sentence whose chart has more cells than
+	 * the work limit still runs out. Its tree is then put together from the best constituents found so far
+	 * @param timeLimit the time limit of a sentence in milliseconds, or 0 for none
+	 * @param workLimit the number of chart cells (or blocks of A* items) computed for a sentence, or 0 for none
+	 */
+	public void setBudget(long timeLimit, long workLimit)
+	{
+		checkConfigurable();
+		m_nTimeLimit = timeLimit;
+		m_nWorkLimit = workLimit;
+	}
+
+	/**
+	 * @return the number of sentences which ran out of their budget
+	 */
+	public int getBudgetExceeded()
+	{
+		return m_nBudgetExceeded.get();
+	}
+
+	/**
+	 * @return the number of sentences which ran out of their budget and whose chart was completed with the narrow beam
+	 */
+	public int getFallbackParses()
+	{
+		return m_nFallbackParses.get();
+	}
+
+	/**
+	 * @return the number of sentences whose tree was put together from the constituents of a partial chart
+	 */
+	public int getFragmentParses()
+	{
+		return m_nFragmentParses.get();
+	}
+
+	/**
+	 * @return the number of chart cells removed by the partial bracketing of all the sentences
+	 */
+	public long getConstrainedCells()
+	{
+		return m_nConstrainedCells.get();
+	}
+
+	/**
+	 * @return the number of sentences which had no parse satisfying their partial bracketing
+	 */
+	public int getConstraintRetries()
+	{
+		return m_nConstraintRetries.get();
+	}
+
+	private Budget newBudget()
+	{
+		return m_nTimeLimit > 0 || m_nWorkLimit > 0 ? new Budget(m_nTimeLimit, m_nWorkLimit) : null;
+	}
 
-				ruleCount++;
+	/**
+	 * Add all relevant unary rule after all the binary rules for the chart cell have been calculated.
+	 * Since the unary closure of the grammar holds the best chain of unary rules between every two symbols,
+	 * a single pass over the symbols derived by binary rules (or tagged over a word) is enough
+	 * @param cg the grammar
+	 * @param chart the chart being filled
+	 * @param cell the index of the cell for which unary rules are calculated
+	 */
+	public void addUnaryRules(CompiledGrammar cg, Chart chart, int cell){
+		int[] active = chart.getActive(cell);
+		double[] scores = chart.getScores(cell);
+
+		// Symbols added by this loop are appended after activeCount, so only the original ones are visited
+		int activeCount = chart.getActiveCount(cell);
+		for (int a = 0; a < activeCount; a++) {
+			int symbol = active[a];
+			double score = scores[symbol];
+			int end = cg.m_arrClosureOffsets[symbol + 1];
+			for (int c = cg.m_arrClosureOffsets[symbol]; c < end; c++) {
+				chart.add(cell, cg.m_arrClosureParent[c], cg.m_arrClosureScore[c] + score, c, Chart.UNARY);
 			}
 		}
+	}
 
-		return m_singDecoder;
+	/**
+	 * Used to construct the parse tree by following the backpointers of the chart
+	 * @param chart the filled chart
+	 * @param input the words of the sentence
+	 * @param j the start of the span of the node
+	 * @param i the end of the span of the node (exclusive)
+	 * @param symbol the number of the symbol of the node
+	 * @return a node constructed from the given chart entry
+	 */
+	public Node constructNodeFromChart(Chart chart, List<String> input, int j, int i, int symbol){
+		CompiledGrammar cg = m_compiledGrammar;
+		Node n = new Node(cg.getSymbol(symbol));
+		int cell = chart.cell(j, i);
+		int rule = chart.getRule(cell, symbol);
+		int split = chart.getSplit(cell, symbol);
+		if(rule == Chart.TERMINAL) {
+			n.addDaughter(new Node(input.get(j)));
+		} else if(split == Chart.UNARY) {
+			// Expand the unary chain down to its bottom symbol, which has its own entry in the cell
+			Node bottom = n;
+			int[] chain = cg.m_arrClosureChain[rule];
+			for(int c = 0; c < chain.length - 1; c++) {
+				Node middle = new Node(cg.getSymbol(cg.m_arrRuleLeft[chain[c]]));
+				bottom.addDaughter(middle);
+				bottom = middle;
+			}
+			bottom.addDaughter(constructNodeFromChart(chart, input, j, i, cg.m_arrClosureChild[rule]));
+		} else {
+			n.addDaughter(constructNodeFromChart(chart, input, j, split, cg.m_arrRuleLeft[rule]));
+			n.addDaughter(constructNodeFromChart(chart, input, split, i, cg.m_arrRuleRight[rule]));
+		}
+		return n;
 	}
 
 	/**
-	 * Add all relevant unary rule after all the binary rules for the chart node have been calculated
-	 * @param cn the ChartNode for which unary rules are calculated
+	 * This method is used to tag a terminal. If the terminal does not exist in the
+	 * training vocabulary, the heuristics for Hebrew of the Lexicon are used to tag the terminal
+	 * @param cg the grammar
+	 * @param chart the chart being filled
+	 * @param cell the index of the cell of the word
+	 * @param word the given word in the given sentence
 	 */
-	public void addUnaryRules(ChartNode cn){
-		Set<Rule> newAppliedRules = new HashSet<Rule>();
-		List<ChartTransition> currentNewTransitions = new ArrayList<ChartTransition>();
-		List<ChartTransition> previousNewTransitions = new ArrayList<ChartTransition>();
+	public void terminalTag(CompiledGrammar cg, Chart chart, int cell, String word){
+		Lexicon.TagVector tags = cg.getLexicon().lookup(word);
+		for(int t = 0; t < tags.m_arrTags.length; t++) {
+			chart.add(cell, tags.m_arrTags[t], tags.m_arrScores[t], Chart.TERMINAL, -1);
+		}
+	}
 
-		for (ChartTransition t: cn.getTransitions().values()) {
-			Set<Rule> ruleSet = m_mapUnaryRules.get(t.getVar());
-			if(ruleSet != null) {
-				for (Rule r : ruleSet) {
-					// Add current unary rule to chart node
-					ChartTransition t2 = new UnaryChartTransition(
-							t,
-							r.getMinusLogProb() + t.getProbability(),
-							r.getLHS().toString());
-					currentNewTransitions.add(t2);
-					newAppliedRules.add(r);
+	/**
+	 * Add all the binary rules that can be derived for chart[j][i] from the cells below it
+	 * @param cg the grammar
+	 * @param chart the chart being filled
+	 * @param j the start of the span
+	 * @param i the end of the span (exclusive)
+	 */
+	public void addBinaryRules(CompiledGrammar cg, Chart chart, int j, int i){
+		int cell = chart.cell(j, i);
+		if(chart.isClosed(cell))
+			return;
+
+		for(int k = j + 1; k < i; k++){
+			int leftCell = chart.cell(j, k);
+			int rightCell = chart.cell(k, i);
+			if(chart.isEmpty(leftCell) || chart.isEmpty(rightCell))
+				continue;
+
+			// Every rule which has a symbol of chart[j][k] as the 1st symbol in its rhs
+			// is checked for its 2nd symbol in chart[k][i]
+			int[] leftActive = chart.getActive(leftCell);
+			int leftCount = chart.getActiveCount(leftCell);
+			double[] leftScores = chart.getScores(leftCell);
+			double[] rightScores = chart.getScores(rightCell);
+			for(int a = 0; a < leftCount; a++) {
+				int leftSymbol = leftActive[a];
+				double leftScore = leftScores[leftSymbol];
+				int end = cg.m_arrBinaryOffsets[leftSymbol + 1];
+				for(int b = cg.m_arrBinaryOffsets[leftSymbol]; b < end; b++) {
+					double rightScore = rightScores[cg.m_arrBinaryRight[b]];
+					if(rightScore == Chart.EMPTY)
+						continue;
+
+					// Add the rule to chart[j][i]
+					chart.add(cell, cg.m_arrBinaryParent[b],
+							cg.m_arrBinaryScore[b] + leftScore + rightScore, cg.m_arrBinaryRule[b], k);
 				}
 			}
 		}
+	}
 
-		for(ChartTransition t: currentNewTransitions)
-			cn.addTransition(t);
-
-		// Keep adding unary transition to the chart node as long as new unary
-		// transitions have been introduced in the previous iteration
-		while(!currentNewTransitions.isEmpty()) {
-			previousNewTransitions = currentNewTransitions;
-			currentNewTransitions = new LinkedList<ChartTransition>();
-			for (ChartTransition t: previousNewTransitions) {
-				Set<Rule> ruleSet = m_mapUnaryRules.get(t.getVar());
-				if(ruleSet != null) {
-					for (Rule r : ruleSet) {
-						// Check if this rule was already processed. This is used
-						// to avoid entering an infinite loop
-						if (!newAppliedRules.contains(r)) {
-							ChartTransition t2 = new UnaryChartTransition(
-									t,
-									r.getMinusLogProb() + t.getProbability(),
-									r.getLHS().toString());
-							currentNewTransitions.add(t2);
-							cn.addTransition(t2);
-							newAppliedRules.add(r);
-						}
+	/**
+	 * Add all the binary rules that can be derived for chart[j][i] from the cells below it, for the parent
+	 * symbols firstParent..lastParent-1 only. The results are written to the given arrays rather than to
+	 * the chart, so that several parts of a cell may be computed at the same time
+	 * @param cg the grammar
+	 * @param chart the chart being filled
+	 * @param j the start of the span
+	 * @param i the end of the span (exclusive)
+	 * @param firstParent the first parent symbol
+	 * @param lastParent the parent symbol after the last one
+	 * @param scores the best score of every parent symbol, EMPTY on entry
+	 * @param rules the rule of the best score of every parent symbol
+	 * @param splits the split point of the best score of every parent symbol
+	 */
+	public void addBinaryRulesByParent(CompiledGrammar cg, Chart chart, int j, int i, int firstParent, int lastParent,
+			double[] scores, int[] rules, int[] splits){
+		int cell = chart.cell(j, i);
+		for(int p = firstParent; p < lastParent; p++) {
+			if(!chart.isAllowed(cell, p))
+				continue;
+			int end = cg.m_arrParentOffsets[p + 1];
+			for(int b = cg.m_arrParentOffsets[p]; b < end; b++) {
+				int left = cg.m_arrParentLeft[b];
+				int right = cg.m_arrParentRight[b];
+				double ruleScore = cg.m_arrParentScore[b];
+				for(int k = j + 1; k < i; k++) {
+					double[] leftScores = chart.getScores(chart.cell(j, k));
+					double[] rightScores = chart.getScores(chart.cell(k, i));
+					if(leftScores == null || rightScores == null)
+						continue;
+					double score = ruleScore + leftScores[left] + rightScores[right];
+					if(score < scores[p]) {
+						scores[p] = score;
+						rules[p] = cg.m_arrParentRule[b];
+						splits[p] = k;
 					}
 				}
 			}
@@ -164,138 +665,340 @@ public class Decode {
 	}
 
 	/**
-	 * Used to construct the parse tree
-	 * @param transition the current transition in the chart
-	 * @return a node constructed from the given transition
+	 * Prune a cell of the chart, keeping only its beamSize best symbols and the symbols whose score is
+	 * within threshold of the best one. Symbols at the bottom of the unary chains of kept symbols are
+	 * kept as well, so that the tree can still be constructed from the cell
+	 * @param cg the grammar
+	 * @param chart the chart being filled
+	 * @param cell the index of the cell to prune
+	 * @param beamSize the maximal number of symbols to keep, or 0 for no limit
+	 * @param threshold the maximal distance from the best score, or infinity for no limit
 	 */
-	public Node constructNodeFromTransition(ChartTransition transition){
-		Node n = new Node(transition.getVar());
-		for(ChartTransition t: transition.getTransitions()) {
-			n.addDaughter(constructNodeFromTransition(t));
+	public void pruneCell(CompiledGrammar cg, Chart chart, int cell, int beamSize, double threshold){
+		int count = chart.getActiveCount(cell);
+		if(count == 0)
+			return;
+
+		int[] active = chart.getActive(cell);
+		double[] scores = chart.getScores(cell);
+		double[] sorted = new double[count];
+		for(int a = 0; a < count; a++)
+			sorted[a] = scores[active[a]];
+		Arrays.sort(sorted);
+
+		// Symbols scoring strictly below the cutoff are kept. Ties at the cutoff are kept
+		// in order of insertion until the beam is full
+		double cutoff = sorted[0] + threshold;
+		int tiesAllowed = Integer.MAX_VALUE;
+		if(beamSize > 0 && beamSize < count && sorted[beamSize - 1] <= cutoff) {
+			cutoff = sorted[beamSize - 1];
+			tiesAllowed = beamSize;
+			for(int a = 0; a < beamSize && sorted[a] < cutoff; a++)
+				tiesAllowed--;
 		}
-		return n;
+
+		boolean[] keep = new boolean[count];
+		for(int a = 0; a < count; a++) {
+			double score = scores[active[a]];
+			keep[a] = score < cutoff || (score == cutoff && tiesAllowed-- > 0);
+		}
+		for(int a = 0; a < count; a++) {
+			if(keep[a] && chart.getSplit(cell, active[a]) == Chart.UNARY) {
+				int bottom = cg.m_arrClosureChild[chart.getRule(cell, active[a])];
+				for(int b = 0; b < count; b++)
+					if(active[b] == bottom)
+						keep[b] = true;
+			}
+		}
+		chart.retain(cell, keep);
 	}
 
 	/**
-	 * This method is used to tag a terminal. If the terminal does not exist in the
-	 * training vocabulary, various heuristics for Hebrew are used to tag the terminal
-	 * @param cn the current ChartNode to process
+	 * Tag a word and add the unary rules over its tags, copying the cell from the word cache when possible.
+	 * The cache is bypassed for restricted cells, whose entries depend on the sentence
+	 * @param cg the grammar
+	 * @param cache the word cache of the grammar, or null
+	 * @param chart the chart being filled
+	 * @param cell the index of the cell of the word
 	 * @param word the given word in the given sentence
 	 */
-	public void terminalTag(ChartNode cn, String word){
-		TerminalTransition terminal = new TerminalTransition(word);
-		String wordSearched = "";
-		boolean foundWord = false;
-
-		// Check if the lexical rules contain the given word in the rhs of a rule.
-		// If not, check if the word ends in "IM", "WT" (hebrew plural) or "IT", and if so, look for the
-		// word without the two last letters in the lexical rules
-		if(m_mapLexicalRules.containsKey(word)) {
-			wordSearched = word;
-			foundWord = true;
-		} else if(word.length() > 2 &&
-				(
-						word.substring(word.length() - 2).equals("IM") ||
-								word.substring(word.length() - 2).equals("WT") ||
-								word.substring(word.length() - 2).equals("IT") ||
-								word.substring(word.length() - 2).equals("TW") ||
-								word.substring(word.length() - 2).equals("TH") ||
-								word.substring(word.length() - 2).equals("TM") ||
-								word.substring(word.length() - 2).equals("TN") ||
-								word.substring(word.length() - 2).equals("KM") ||
-								word.substring(word.length() - 2).equals("KN")
-				)){
-			if(m_mapLexicalRules.containsKey(word.substring(0, word.length() - 2))) {
-				wordSearched = word.substring(0, word.length() - 2);
-				foundWord = true;
-			}
-			else if(m_mapLexicalRules.containsKey(word.substring(0, word.length() - 2) + "H")){
-				wordSearched = word.substring(0, word.length() - 2) + "H";
-				foundWord = true;
-			}
+	public void tagWord(CompiledGrammar cg, WordCache cache, Chart chart, int cell, String word){
+		if(cache == null || chart.isRestricted(cell)) {
+			terminalTag(cg, chart, cell, word);
+			addUnaryRules(cg, chart, cell);
+			return;
+		}
+
+		WordCache.Entry entry = cache.get(word);
+		if(entry != null) {
+			entry.apply(chart, cell);
+		} else {
+			terminalTag(cg, chart, cell, word);
+			addUnaryRules(cg, chart, cell);
+			cache.put(word, new WordCache.Entry(chart, cell));
 		}
-		else if(word.charAt(word.length() - 1) == 'I' ||
-				word.charAt(word.length() - 1) == 'H' ||
-				word.charAt(word.length() - 1) == 'W') {
-			if(m_mapLexicalRules.containsKey(word.substring(0, word.length() - 1))) {
-				wordSearched = word.substring(0, word.length() - 1);
-				foundWord = true;
+	}
+
+	/**
+	 * Add the binary and unary rules of chart[j][i], copying the cell from the span cache when possible.
+	 * The cache is bypassed when the chart is pruned or restricted, as the cells then depend on more than
+	 * the words they span
+	 * @param cg the grammar
+	 * @param cache the span cache of the grammar, or null
+	 * @param chart the chart being filled
+	 * @param input a list of words which represent the sentence
+	 * @param j the start of the span
+	 * @param i the end of the span (exclusive)
+	 * @param prune whether the chart is pruned
+	 */
+	public void fillSpan(CompiledGrammar cg, SpanCache cache, Chart chart, List<String> input, int j, int i, boolean prune){
+		int cell = chart.cell(j, i);
+		boolean cached = cache != null && !prune && i - j <= cache.getMaxLength() && !chart.isRestricted(cell);
+		String key = null;
+		if(cached) {
+			key = SpanCache.key(input, j, i);
+			SpanCache.Entry entry = cache.get(key);
+			if(entry != null) {
+				entry.apply(chart, cell, j);
+				return;
 			}
 		}
 
+		BlockedKernel blockedKernel = m_blockedKernel;
+		if(blockedKernel != null)
+			blockedKernel.addBinaryRules(cg, chart, j, i);
+		else
+			addBinaryRules(cg, chart, j, i);
+		removeBinarized(chart, cell);
+
+		// Add all the possible unary rules that can be derived from chart[j][i]
+		addUnaryRules(cg, chart, cell);
+
+		if(cached)
+			cache.put(key, new SpanCache.Entry(chart, cell, j));
+	}
+
+	/**
+	 * In a cell which must be a constituent of the parse, remove the binarized symbols derived by binary rules,
+	 * before the unary closure is computed
+	 * @param chart the chart being filled
+	 * @param cell the index of the cell, whose binary rules were computed
+	 */
+	void removeBinarized(Chart chart, int cell){
+		if(!chart.isConstituent(cell))
+			return;
+		int[] active = chart.getActive(cell);
+		boolean[] keep = new boolean[chart.getActiveCount(cell)];
+		for(int a = 0; a < keep.length; a++)
+			keep[a] = !m_arrBinarizedSymbols[active[a]];
+		chart.retain(cell, keep);
+	}
+
+	/**
+	 * Fill the chart of the CKY algorithm for the given sentence
+	 * @param cg the grammar
+	 * @param cache the word cache of the grammar, or null
+	 * @param spanCache the span cache of the grammar, or null
+	 * @param chart an empty chart for the sentence
+	 * @param input a list of words which represent the sentence
+	 * @param beamSize the maximal number of symbols kept in a cell, or 0 for no limit
+	 * @param threshold the maximal distance of a kept symbol from the best one in its cell,
+	 *                  or infinity for no limit
+	 * @param budget the budget of the sentence, or null for none. The cells computed after it runs out are
+	 *               left empty
+	 */
+	public void fillChart(CompiledGrammar cg, WordCache cache, SpanCache spanCache, Chart chart, List<String> input,
+			int beamSize, double threshold, Budget budget){
+		boolean prune = beamSize > 0 || threshold != Double.POSITIVE_INFINITY;
+
+		ForkJoinPool wavefrontPool = m_wavefrontPool;
+		if(wavefrontPool != null && input.size() >= m_nWavefrontLength) {
+			m_nWavefrontCharts.incrementAndGet();
+			wavefrontPool.invoke(new WavefrontTask(cg, cache, spanCache, chart, input, beamSize, threshold, budget));
+			return;
+		}
+
+		for(int i = 1; i <= input.size(); i++) {
+			if(budget != null && !budget.spend())
+				return;
+			int wordCell = chart.cell(i - 1, i);
+			tagWord(cg, cache, chart, wordCell, input.get(i - 1));
+			if(prune)
+				pruneCell(cg, chart, wordCell, beamSize, threshold);
 
-		// If such a word was found, add the unary transition to it
-		if(foundWord) {
-			for (Rule r : m_mapLexicalRules.get(wordSearched)) {
-				ChartTransition transition = new UnaryChartTransition(
-						terminal,
-						r.getMinusLogProb(),
-						r.getLHS().toString());
-				cn.addTransition(transition);
+			for(int j = i - 2; j >= 0; j--){
+				if(budget != null && !budget.spend())
+					return;
+				int cell = chart.cell(j, i);
+				fillSpan(cg, spanCache, chart, input, j, i, prune);
+				if(prune)
+					pruneCell(cg, chart, cell, beamSize, threshold);
 			}
 		}
+	}
 
-		// If this is a number then tag it with CD
-		else if(word.matches("\\d+")) {
-			ChartTransition transition = new UnaryChartTransition(
-					terminal,
-					MAX_PROBABILITY,
-					"CD");
-			cn.addTransition(transition);
+	// Fills a chart one span length at a time, the cells of the same length in parallel.
+	// A cell depends only on shorter cells, so the cells of one span length are independent
+	private class WavefrontTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final CompiledGrammar m_cg;
+		private final WordCache m_wordCache;
+		private final SpanCache m_spanCache;
+		private final Chart m_chart;
+		private final List<String> m_input;
+		private final int m_nBeamSize;
+		private final double m_dThreshold;
+		private final Budget m_budget;
+
+		WavefrontTask(CompiledGrammar cg, WordCache cache, SpanCache spanCache, Chart chart, List<String> input,
+				int beamSize, double threshold, Budget budget) {
+			m_cg = cg;
+			m_wordCache = cache;
+			m_spanCache = spanCache;
+			m_chart = chart;
+			m_input = input;
+			m_nBeamSize = beamSize;
+			m_dThreshold = threshold;
+			m_budget = budget;
 		}
 
-		//
-		else if(word.contains("U")) {
-			ChartTransition transition = new UnaryChartTransition(
-					terminal,
-					MAX_PROBABILITY,
-					"NNP");
-			cn.addTransition(transition);
+		@Override
+		protected void compute() {
+			int n = m_input.size();
+			for(int len = 1; len <= n && !isExhausted(); len++)
+				new DiagonalTask(this, len, 0, n - len + 1).invoke();
 		}
 
-		// Otherwise, the word has not been found, so we employ smoothing and give it all
-		// the possible tags with their respective probabilities
-		else{
-			boolean mightBeVerb = false;
+		// Spend the work of a cell, which is not computed once the budget runs out
+		boolean spend() {
+			return m_budget == null || m_budget.spend();
+		}
 
-			// If the word is unseen and its first letter is an "AITN" letter or "M", there is a high probability
-			// that this is a verb
-			if(word.charAt(0) == 'A' || word.charAt(0) == 'I' || word.charAt(0) == 'T' || word.charAt(0) == 'N'
-					|| word.charAt(0) == 'M') {
-				mightBeVerb = true;
+		boolean isExhausted() {
+			return m_budget != null && m_budget.isExhausted();
+		}
+
+		// Compute the unary rules of a cell whose base symbols are in place, then prune it
+		void finishCell(int cell) {
+			removeBinarized(m_chart, cell);
+			addUnaryRules(m_cg, m_chart, cell);
+			prune(cell);
+		}
+
+		void prune(int cell) {
+			if(isPruned())
+				pruneCell(m_cg, m_chart, cell, m_nBeamSize, m_dThreshold);
+		}
+
+		boolean isPruned() {
+			return m_nBeamSize > 0 || m_dThreshold != Double.POSITIVE_INFINITY;
+		}
+	}
+
+	// Fills the cells first..last-1 of one span length, by halving the range down to single cells
+	private class DiagonalTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final WavefrontTask m_wavefront;
+		private final int m_nLength;
+		private final int m_nFirst;
+		private final int m_nLast;
+
+		DiagonalTask(WavefrontTask wavefront, int length, int first, int last) {
+			m_wavefront = wavefront;
+			m_nLength = length;
+			m_nFirst = first;
+			m_nLast = last;
+		}
+
+		@Override
+		protected void compute() {
+			if(m_nLast - m_nFirst > 1) {
+				int middle = (m_nFirst + m_nLast) >>> 1;
+				invokeAll(new DiagonalTask(m_wavefront, m_nLength, m_nFirst, middle),
+						new DiagonalTask(m_wavefront, m_nLength, middle, m_nLast));
+				return;
 			}
 
-			// Get all rules of the form POS-->UNKNOWN as a smoothing technique
-			for(Rule r: m_mapLexicalRules.get("UNKNOWN")) {
-				double prob = r.getMinusLogProb();
-				String lhs = r.getLHS().toString();
-
-				// Judging by the given train and gold sets, unseen words are often adjectives,
-				// so if the current rule is JJ, or VB and the word starts with a "AITN" letter,
-				// it's probability is then divided by 2
-				if(lhs.equals("NN") ||
-						lhs.equals("NNP") ||
-						lhs.equals("NNT") ||
-						lhs.equals("JJ") ||
-						(mightBeVerb &&lhs.equals("VB")))
-					prob = Math.log(prob);
-
-				ChartTransition transition = new UnaryChartTransition(
-						terminal,
-						prob,
-						r.getLHS().toString());
-				cn.addTransition(transition);
+			if(!m_wavefront.spend())
+				return;
+			CompiledGrammar cg = m_wavefront.m_cg;
+			Chart chart = m_wavefront.m_chart;
+			int j = m_nFirst;
+			int i = j + m_nLength;
+			int cell = chart.cell(j, i);
+			if(m_nLength == 1) {
+				tagWord(cg, m_wavefront.m_wordCache, chart, cell, m_wavefront.m_input.get(j));
+				m_wavefront.prune(cell);
+				return;
+			} else if(m_bSplitCells && !chart.isClosed(cell) &&
+					m_wavefront.m_input.size() - m_nLength + 1 < getPool().getParallelism()) {
+				// Too few cells to keep every thread busy, so the parents of the cell are split between tasks
+				int symbolCount = cg.getSymbolCount();
+				double[] scores = new double[symbolCount];
+				int[] rules = new int[symbolCount];
+				int[] splits = new int[symbolCount];
+				Arrays.fill(scores, Chart.EMPTY);
+				new ParentTask(cg, chart, j, i, 0, symbolCount, scores, rules, splits).invoke();
+				for(int p = 0; p < symbolCount; p++)
+					if(scores[p] != Chart.EMPTY)
+						chart.add(cell, p, scores[p], rules[p], splits[p]);
+			} else {
+				fillSpan(cg, m_wavefront.m_spanCache, chart, m_wavefront.m_input, j, i, m_wavefront.isPruned());
+				m_wavefront.prune(cell);
+				return;
 			}
+			m_wavefront.finishCell(cell);
+		}
+	}
+
+	// Computes the binary rules of the parents first..last-1 of a cell, by halving the range
+	// down to PARENTS_PER_TASK parents
+	private class ParentTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final CompiledGrammar m_cg;
+		private final Chart m_chart;
+		private final int m_nStart;
+		private final int m_nEnd;
+		private final int m_nFirst;
+		private final int m_nLast;
+		private final double[] m_arrScores;
+		private final int[] m_arrRules;
+		private final int[] m_arrSplits;
+
+		ParentTask(CompiledGrammar cg, Chart chart, int j, int i, int first, int last,
+				double[] scores, int[] rules, int[] splits) {
+			m_cg = cg;
+			m_chart = chart;
+			m_nStart = j;
+			m_nEnd = i;
+			m_nFirst = first;
+			m_nLast = last;
+			m_arrScores = scores;
+			m_arrRules = rules;
+			m_arrSplits = splits;
+		}
+
+		@Override
+		protected void compute() {
+			if(m_nLast - m_nFirst > PARENTS_PER_TASK) {
+				int middle = (m_nFirst + m_nLast) >>> 1;
+				invokeAll(new ParentTask(m_cg, m_chart, m_nStart, m_nEnd, m_nFirst, middle, m_arrScores, m_arrRules, m_arrSplits),
+						new ParentTask(m_cg, m_chart, m_nStart, m_nEnd, middle, m_nLast, m_arrScores, m_arrRules, m_arrSplits));
+				return;
+			}
+			addBinaryRulesByParent(m_cg, m_chart, m_nStart, m_nEnd, m_nFirst, m_nLast, m_arrScores, m_arrRules, m_arrSplits);
 		}
 	}
 
 	/**
-	 * Decode the given sentence into a tree using the CKY algorithm
+	 * Build the tree of the dummy parser: a flat tree with NN labels on all leaves
 	 * @param input a list of words which represent the sentence
-	 * @return the parse tree with the lowest -LogProb
+	 * @return the flat tree
 	 */
-	public Tree decode(List<String> input){
-
+	private Tree flatTree(List<String> input){
 		// Done: Baseline Decoder
 		//       Returns a flat tree with NN labels on all leaves
 		Tree t = new Tree(new Node("TOP"));
@@ -307,256 +1010,463 @@ public class Decode {
 			preTerminal.addDaughter(terminal);
 			t.getRoot().addDaughter(preTerminal);
 		}
+		return t;
+	}
 
-
+	/**
+	 * Fill the chart of the current thread for the given sentence
+	 * @param input a non empty list of words which represent the sentence
+	 * @param constraints the partial bracketing of the sentence, or null. If no parse satisfies it, the sentence
+	 *                    is parsed again without it when it is relaxable
+	 * @return the filled chart, or null if no parse was found. When the sentence ran out of its budget the
+	 *         chart may hold no parse, but only the constituents found so far (see fragments). The chart is
+	 *         valid until the next sentence is parsed by the same thread
+	 */
+	private Chart parse(List<String> input, Constraints constraints){
 		//CKY implementation
-		ChartNode[][] chart = new ChartNode[input.size() + 1][input.size() + 1];
+		CompiledGrammar cg = m_compiledGrammar;
+		int startSymbol = cg.getSymbolNum(START_VARIABLE);
+		// The settings are read once, so that the whole sentence is decoded with the same ones
+		int beamSize = m_nBeamSize;
+		double threshold = m_dBeamThreshold;
+		AStar aStar = m_aStar;
+		boolean prune = aStar == null && (beamSize > 0 || threshold != Double.POSITIVE_INFINITY);
+		CoarseToFine coarseToFine = m_coarseToFine;
+		Tagger tagger = m_tagger;
+		ChartConstraints chartConstraints = m_chartConstraints;
+		boolean pretag = tagger != null;
+		boolean closeCells = chartConstraints != null;
+		Recognizer recognizer = m_bRecognize ? m_recognizer : null;
+		boolean grammarFilter = m_bGrammarFilter;
+		WordCache wordCache = m_wordCache;
+		Budget budget = newBudget();
+		if(constraints != null)
+			constraints.setRelaxed(false);
+		if(constraints != null && constraints.isEmpty())
+			constraints = null;
+		int attempt = 0;
+		while(true) {
+			// The last attempt is exhaustive, so pruning never loses a parse
+			if(prune && attempt > BEAM_RETRIES) {
+				beamSize = 0;
+				threshold = Double.POSITIVE_INFINITY;
+				prune = false;
+			}
 
-		for(int i = 1; i <= input.size(); i++) {
-			chart[i - 1][i] = new ChartNode();
-			terminalTag(chart[i - 1][i], input.get(i - 1));
+			Chart chart = m_chartArena.get();
+			chart.reset(input.size());
 
-			addUnaryRules(chart[i - 1][i]);
-			chart[i - 1][i].calculateRuleMaps();
+			// The coarse grammar is a projection of the fine one, so if it finds no parse neither will the fine
+			if(coarseToFine != null && !coarseToFine.restrict(this, input, chart, START_VARIABLE, budget))
+				return null;
 
-			for(int j = i - 2; j >= 0; j--){
-				chart[j][i] = new ChartNode();
-				for(int k = j + 1; k < i; k++){
-					if(chart[j][k] != null && chart[k][i] != null) {
-						// Get map of all rules which have the 1st symbol in the rhs of the rule
-						// as a transition in chart[j][k]
-						HashMap<Integer, ChartTransition> leftRules = chart[j][k].getLeftRules();
-
-						// Get map of all rules which have the 2nd symbol in the rhs of the rule
-						// as a transition in chart[k][i]
-						HashMap<Integer, ChartTransition> rightRules = chart[k][i].getRightRules();
-
-						// Intersect them to get all rules that can be derived from chart[j][k] and chart[k][i]
-						HashMap<Integer, Pair<ChartTransition, ChartTransition>> intersection =
-								intersectHashMaps(leftRules, rightRules);
-
-						// Add every rule in the intersection to chart[j][i]
-						for(Map.Entry<Integer, Pair<ChartTransition, ChartTransition>> e: intersection.entrySet()) {
-							Rule r = m_mapNumToRule.get(e.getKey());
-
-							ChartTransition newTransition = new BinaryChartTransition(
-									e.getValue().x,
-									e.getValue().y,
-									r.getMinusLogProb() +
-											e.getValue().x.getProbability() +
-											e.getValue().y.getProbability(),
-									r.getLHS().toString()
-							);
-							chart[j][i].addTransition(newTransition);
-						}
-					}
-				}
-				// Add all the possible unary rules that can be derived from chart[j][i]
-				addUnaryRules(chart[j][i]);
+			// The span cache holds cells computed from unrestricted cells below them, so it is not used
+			// when only some of the cells are restricted
+			SpanCache spanCache = m_spanCache;
+			if(grammarFilter) {
+				m_grammarAnalysis.apply(chart, input.size());
+				spanCache = null;
+			}
+			if(constraints != null) {
+				m_nConstrainedCells.addAndGet(constraints.apply(this, cg, chart, input.size()));
+				spanCache = null;
+			}
+			if(pretag) {
+				tagger.restrict(chart, input);
+				spanCache = null;
+			}
+			if(closeCells) {
+				chartConstraints.apply(chart, input);
+				spanCache = null;
+			}
 
-				// Calculate all rules that can be derived from chart[j][i] by having their 1st of 2nd
-				// symbol as a transition in chart[j][i]
-				chart[j][i].calculateRuleMaps();
+			// The recognizer finds no parse when no search of the restricted chart would, however wide its beam
+			boolean parsable = true;
+			if(recognizer != null) {
+				parsable = recognizer.restrict(chart, input, startSymbol);
+				spanCache = null;
 			}
-		}
 
-		// Look for the start symbol in chart[0][input.size()] which gives the minimum probability transition
-		double minProb = Double.MAX_VALUE;
-		ChartTransition bestTransition = null;
-		if(chart[0][input.size()] != null) {
-			for (ChartTransition transition : chart[0][input.size()].getTransitions().values()) {
-				if (transition.variable.equals(START_VARIABLE) && transition.getProbability() < minProb) {
-					minProb = transition.getProbability();
-					bestTransition = transition;
-				}
+			boolean found;
+			if(!parsable) {
+				found = false;
+			} else if(aStar != null) {
+				found = aStar.fillChart(this, chart, input, budget);
+			} else {
+				fillChart(cg, wordCache, spanCache, chart, input, beamSize, threshold, budget);
+				found = chart.getScore(chart.cell(0, input.size()), startSymbol) != Chart.EMPTY;
 			}
-		}
 
-		// If CKY returned no valid parse, return the result of the dummy parser
-		if(bestTransition == null)
-			return t;
+			// Look for the start symbol in chart[0][input.size()]
+			if(found)
+				return chart;
+
+			if(budget != null && budget.isExhausted())
+				return parseWithinBudget(input, chart, budget);
+
+			// If the coarse pass pruned away every parse, try again without it
+			if(coarseToFine != null) {
+				m_nCoarseToFineRetries.incrementAndGet();
+				coarseToFine = null;
+				continue;
+			}
+
+			// If the tagging pass removed the tags of every parse, try again with all the tags of the words
+			if(pretag) {
+				m_nTaggerRetries.incrementAndGet();
+				pretag = false;
+				continue;
+			}
 
-		// Construct the parse tree from the start symbol transition with smallest probability
-		Tree t2 = new Tree(new Node("TOP"));
-		t2.getRoot().addDaughter(constructNodeFromTransition(bestTransition));
-		return t2;
+			// If the chart constraints closed the cells of every parse, try again without them
+			if(closeCells) {
+				m_nChartConstraintRetries.incrementAndGet();
+				closeCells = false;
+				continue;
+			}
+
+			// If the constraints ruled out every parse, try again without them if the caller allows it
+			if((!prune || !parsable) && constraints != null) {
+				m_nConstraintRetries.incrementAndGet();
+				if(!constraints.isRelaxable())
+					return null;
+				constraints.setRelaxed(true);
+				constraints = null;
+				continue;
+			}
 
+			// If CKY returned no valid parse, the caller falls back to the dummy parser
+			if(!prune || !parsable)
+				return null;
+
+			// Otherwise try again with a wider beam
+			m_nBeamRetries.incrementAndGet();
+			beamSize *= BEAM_WIDENING;
+			threshold *= BEAM_WIDENING;
+			attempt++;
+		}
 	}
 
 	/**
-	 * Intersect two hash maps by their keys. Used to calculate which rules can be derived
-	 * given a map of right and a map of left symbols
-	 * @param left map of integers representing rule number to ChartTransitions
-	 * @param right map of integers representing rule number to ChartTransitions
-	 * @return a HashMap that maps a rule to the pair of two transitions yielding this rule
+	 * Complete the chart of a sentence which ran out of its budget: the cells which were not reached are
+	 * filled with a narrow beam on the reserve of the budget, in the order of fillChart, while the cells
+	 * already computed are kept with their restrictions. If that finds no parse either, the words whose cells
+	 * were not reached are tagged, so that the constituents of the chart cover the whole sentence
+	 * @param input a non empty list of words which represent the sentence
+	 * @param chart the chart of the current thread, as filled when the budget ran out
+	 * @param budget the budget of the sentence, which ran out
+	 * @return the chart, holding either a parse or the constituents found so far
 	 */
-	public static HashMap<Integer, Pair<ChartTransition, ChartTransition>> intersectHashMaps(
-			HashMap<Integer, ChartTransition> left,
-			HashMap<Integer, ChartTransition> right){
+	private Chart parseWithinBudget(List<String> input, Chart chart, Budget budget){
+		m_nBudgetExceeded.incrementAndGet();
+		CompiledGrammar cg = m_compiledGrammar;
+		budget.releaseReserve();
+		fillUnreached(cg, chart, input, budget);
+		if(hasParse(chart, input)) {
+			m_nFallbackParses.incrementAndGet();
+			return chart;
+		}
 
-		HashMap<Integer, Pair<ChartTransition, ChartTransition>> intersection =
-				new HashMap<Integer, Pair<ChartTransition, ChartTransition>>();
+		for(int w = 0; w < input.size(); w++) {
+			int cell = chart.cell(w, w + 1);
+			if(chart.isEmpty(cell))
+				tagWord(cg, m_wordCache, chart, cell, input.get(w));
+		}
+		m_nFragmentParses.incrementAndGet();
+		return chart;
+	}
 
-		// If the left map is smaller we iterate over it, otherwise we iterate over the right
-		// This is an optimization
-		if(left.size() <= right.size()) {
-			for (Map.Entry<Integer, ChartTransition> e : left.entrySet()) {
-				ChartTransition t = right.get(e.getKey());
-				if (t != null)
-					intersection.put(e.getKey(), new Pair(e.getValue(), t));
+	// Fills the empty cells of a chart with the fallback beam, until the budget runs out
+	private void fillUnreached(CompiledGrammar cg, Chart chart, List<String> input, Budget budget){
+		for(int i = 1; i <= input.size(); i++) {
+			int wordCell = chart.cell(i - 1, i);
+			if(chart.isEmpty(wordCell)) {
+				if(!budget.spend())
+					return;
+				tagWord(cg, m_wordCache, chart, wordCell, input.get(i - 1));
+				pruneCell(cg, chart, wordCell, FALLBACK_BEAM_SIZE, Double.POSITIVE_INFINITY);
 			}
-		} else {
-			for (Map.Entry<Integer, ChartTransition> e : right.entrySet()) {
-				ChartTransition t = left.get(e.getKey());
-				if (t != null)
-					intersection.put(e.getKey(), new Pair(t, e.getValue()));
+			for(int j = i - 2; j >= 0; j--) {
+				int cell = chart.cell(j, i);
+				if(!chart.isEmpty(cell) || chart.isClosed(cell))
+					continue;
+				if(!budget.spend())
+					return;
+				fillSpan(cg, null, chart, input, j, i, true);
+				pruneCell(cg, chart, cell, FALLBACK_BEAM_SIZE, Double.POSITIVE_INFINITY);
 			}
 		}
-		return intersection;
 	}
 
-	// This class represents an abstract transition in the chart of the CKY algorithm
-	private abstract class ChartTransition {
-		// A child transition
-		protected ChartTransition t1;
-
-		// The probability of this transition
-		double probability;
-
-		// The label of this transition
-		String variable;
+	private boolean hasParse(Chart chart, List<String> input){
+		return chart.getScore(chart.cell(0, input.size()), m_compiledGrammar.getSymbolNum(START_VARIABLE)) != Chart.EMPTY;
+	}
 
-		public ChartTransition(ChartTransition t1, double probability, String var) {
-			this.t1 = t1;
-			this.probability = probability;
-			this.variable = var;
+	/**
+	 * Analyze the words of a chart as a sequence of constituents. The sequence has as few constituents as
+	 * possible, and among those the lowest -LogProb. Every constituent is the best symbol of its cell,
+	 * binarized symbols excluded
+	 * @param chart a chart, which may be partially filled
+	 * @param n the number of words of the chart
+	 * @return the constituents in the order of the sentence, as {start, end, symbol}. The symbol of a word
+	 *         which is in no constituent is -1
+	 */
+	List<int[]> fragments(Chart chart, int n){
+		// The best segmentation of every prefix, and the last constituent of it
+		int[] count = new int[n + 1];
+		double[] score = new double[n + 1];
+		int[] start = new int[n + 1];
+		int[] symbol = new int[n + 1];
+		for(int i = 1; i <= n; i++) {
+			count[i] = Integer.MAX_VALUE;
+			for(int j = 0; j < i; j++) {
+				int cell = chart.cell(j, i);
+				int best = bestSymbol(chart, cell);
+				if(best == -1 && j < i - 1)
+					continue;
+				double s = score[j] + (best == -1 ? 0.0 : chart.getScore(cell, best));
+				if(count[j] + 1 < count[i] || (count[j] + 1 == count[i] && s < score[i])) {
+					count[i] = count[j] + 1;
+					score[i] = s;
+					start[i] = j;
+					symbol[i] = best;
+				}
+			}
 		}
 
-		/**
-		 * Get all child transitions as a list
-		 * @return all chart transitions in order
-		 */
-		public abstract List<ChartTransition> getTransitions();
-
-		public double getProbability() { return probability; }
-		public String getVar() { return variable; }
+		// Collect the constituents from the end of the sentence back to its start
+		List<int[]> fragments = new ArrayList<int[]>();
+		for(int i = n; i > 0; i = start[i])
+			fragments.add(0, new int[] {start[i], i, symbol[i]});
+		return fragments;
 	}
 
-	// This class represents a binary transition in the chart of the CKY algorithm
-	private class BinaryChartTransition extends ChartTransition {
-		// A second child transition
-		protected ChartTransition t2;
-
-		public BinaryChartTransition(
-				ChartTransition t1,
-				ChartTransition t2,
-				double probability,
-				String var) {
-			super(t1, probability, var);
-			this.t2 = t2;
-		}
-
-		public List<ChartTransition> getTransitions(){
-			List<ChartTransition> transitions = new LinkedList<ChartTransition>();
-			transitions.add(t1);
-			transitions.add(t2);
-			return transitions;
+	/**
+	 * @return the symbol of the cell with the lowest score which was not added by the binarization, or -1
+	 */
+	private int bestSymbol(Chart chart, int cell){
+		int best = -1;
+		int[] active = chart.getActive(cell);
+		for(int a = 0; a < chart.getActiveCount(cell); a++) {
+			int s = active[a];
+			if(!m_arrBinarizedSymbols[s] && (best == -1 || chart.getScore(cell, s) < chart.getScore(cell, best)))
+				best = s;
 		}
+		return best;
+	}
 
-		public String toString(){
-			return "(" + variable + " (" + t1.toString() +" " + t2.toString() + "))";
+	/**
+	 * Build a tree whose TOP node has the constituents of a chart as daughters, see fragments. A word which
+	 * is in no constituent is tagged NN, as by the dummy parser
+	 * @param chart a chart, which may be partially filled
+	 * @param input the words of the chart
+	 * @param debinarize whether to splice out the nodes of the binarized symbols
+	 * @return the tree
+	 */
+	Tree fragmentTree(Chart chart, List<String> input, boolean debinarize){
+		Tree t = new Tree(new Node("TOP"));
+		for(int[] fragment : fragments(chart, input.size())) {
+			if(fragment[2] == -1) {
+				Node preTerminal = new Node("NN");
+				preTerminal.addDaughter(new Terminal(input.get(fragment[0])));
+				t.getRoot().addDaughter(preTerminal);
+			} else if(debinarize) {
+				addDebinarizedNodes(t.getRoot(), chart, input, fragment[0], fragment[1], fragment[2]);
+			} else {
+				t.getRoot().addDaughter(constructNodeFromChart(chart, input, fragment[0], fragment[1], fragment[2]));
+			}
 		}
+		return t;
 	}
 
-	// This class represents a unary transition in the chart of the CKY algorithm
-	private class UnaryChartTransition extends ChartTransition {
-		public UnaryChartTransition(ChartTransition t1, double probability, String var) {
-			super(t1, probability, var);
-		}
+	// Whether the constraints of a sentence which found no parse had to be satisfied
+	private static boolean isHard(Constraints constraints){
+		return constraints != null && !constraints.isEmpty() && !constraints.isRelaxed();
+	}
 
-		public String toString(){
-			return "(" + variable + " " + t1.toString() + ")";
-		}
+	/**
+	 * Decode the given sentence into a tree using the CKY algorithm
+	 * @param input a list of words which represent the sentence
+	 * @return the binarized parse tree with the lowest -LogProb
+	 */
+	public Tree decode(List<String> input){
+		return decode(input, null);
+	}
 
-		public List<ChartTransition> getTransitions(){
-			List<ChartTransition> transitions = new LinkedList<ChartTransition>();
-			transitions.add(t1);
-			return transitions;
-		}
+	/**
+	 * Decode the given sentence into a tree using the CKY algorithm, computing only the cells which are
+	 * compatible with the given partial bracketing
+	 * @param input a list of words which represent the sentence
+	 * @param constraints the partial bracketing of the sentence, or null. If no parse satisfies it, it is ignored
+	 *                    when it is relaxable (see Constraints.isRelaxed)
+	 * @return the binarized parse tree with the lowest -LogProb, or null if no parse satisfies hard constraints
+	 */
+	public Tree decode(List<String> input, Constraints constraints){
+		Chart chart = input.isEmpty() ? null : parse(input, constraints);
+		if(chart == null)
+			return isHard(constraints) ? null : flatTree(input);
+		if(!hasParse(chart, input))
+			return fragmentTree(chart, input, false);
+		return binarizedTree(chart, input);
 	}
 
-	// This class represents a dummy transition to a terminal in the chart of the CKY algorithm
-	private class TerminalTransition extends ChartTransition {
-		public TerminalTransition(String var){
-			super(null, MAX_PROBABILITY, var);
-		}
+	/**
+	 * Decode the given sentence into a tree without the nodes added by the binarization. The tree is built
+	 * directly from the chart, so no binarized tree is built first
+	 * @param input a list of words which represent the sentence
+	 * @return the de-binarized parse tree with the lowest -LogProb
+	 */
+	public Tree decodeDebinarized(List<String> input){
+		return decodeDebinarized(input, null);
+	}
 
-		public String toString(){
-			return variable;
-		}
+	/**
+	 * Decode the given sentence into a tree without the nodes added by the binarization, computing only
+	 * the cells which are compatible with the given partial bracketing
+	 * @param input a list of words which represent the sentence
+	 * @param constraints the partial bracketing of the sentence, or null. If no parse satisfies it, it is ignored
+	 *                    when it is relaxable (see Constraints.isRelaxed)
+	 * @return the de-binarized parse tree with the lowest -LogProb, or null if no parse satisfies hard constraints
+	 */
+	public Tree decodeDebinarized(List<String> input, Constraints constraints){
+		Chart chart = input.isEmpty() ? null : parse(input, constraints);
+		if(chart == null)
+			return isHard(constraints) ? null : flatTree(input);
+		if(!hasParse(chart, input))
+			return fragmentTree(chart, input, true);
+		return debinarizedTree(chart, input);
+	}
 
-		public List<ChartTransition> getTransitions(){
-			List<ChartTransition> transitions = new LinkedList<ChartTransition>();
-			return transitions;
-		}
+	/**
+	 * Decode the given sentence into the bracketed string of its de-binarized tree, written directly from
+	 * the chart without building any tree
+	 * @param input a list of words which represent the sentence
+	 * @return the bracketed parse with the lowest -LogProb, as Tree.toString would write it
+	 */
+	public String decodeToString(List<String> input){
+		return decodeToString(input, null);
 	}
 
-	// This class represents a cell in the chart of the CKY algorithm
-	private class ChartNode{
-		// A mapping from a string to a chart transitions in the current cell having the given string
-		private Map<String, ChartTransition> nodeTransitions;
-		private HashMap<Integer, ChartTransition> rightRules;
-		private HashMap<Integer, ChartTransition> leftRules;
+	/**
+	 * Decode the given sentence into the bracketed string of its de-binarized tree, computing only the
+	 * cells which are compatible with the given partial bracketing
+	 * @param input a list of words which represent the sentence
+	 * @param constraints the partial bracketing of the sentence, or null. If no parse satisfies it, it is ignored
+	 *                    when it is relaxable (see Constraints.isRelaxed)
+	 * @return the bracketed parse with the lowest -LogProb, as Tree.toString would write it, or null if no
+	 *         parse satisfies hard constraints
+	 */
+	public String decodeToString(List<String> input, Constraints constraints){
+		Chart chart = input.isEmpty() ? null : parse(input, constraints);
+		if(chart == null)
+			return isHard(constraints) ? null : flatTree(input).toString();
+		if(!hasParse(chart, input))
+			return fragmentTree(chart, input, true).toString();
+		return parseString(chart, input);
+	}
 
-		public ChartNode(){
-			nodeTransitions = new HashMap<String, ChartTransition>();
-		}
+	private Tree binarizedTree(Chart chart, List<String> input){
+		// Construct the parse tree from the start symbol entry of the top cell
+		Tree t = new Tree(new Node("TOP"));
+		int startSymbol = m_compiledGrammar.getSymbolNum(START_VARIABLE);
+		t.getRoot().addDaughter(constructNodeFromChart(chart, input, 0, input.size(), startSymbol));
+		return t;
+	}
 
-		/**
-		 * Calculate the rules that can be derived from the cell's ChartTransition for rules where
-		 * the transition is to the first symbol or second symbol. This is used to optimize the inner
-		 * loop of the CKY algorithm
-		 */
-		public void calculateRuleMaps(){
-			leftRules = new HashMap<Integer, ChartTransition>();
-			rightRules = new HashMap<Integer, ChartTransition>();
+	private Tree debinarizedTree(Chart chart, List<String> input){
+		Tree t = new Tree(new Node("TOP"));
+		int startSymbol = m_compiledGrammar.getSymbolNum(START_VARIABLE);
+		addDebinarizedNodes(t.getRoot(), chart, input, 0, input.size(), startSymbol);
+		return t;
+	}
 
-			for(ChartTransition t: nodeTransitions.values()) {
-				Set<Rule> currentLeftRules = m_mapLeftSymbolBinaryRules.get(t.getVar());
-				if(currentLeftRules != null)
-					for(Rule r: currentLeftRules){
-						leftRules.put(m_mapRuleToNum.get(r), t);
-					}
+	private String parseString(Chart chart, List<String> input){
+		StringBuilder sb = new StringBuilder("(TOP ");
+		int startSymbol = m_compiledGrammar.getSymbolNum(START_VARIABLE);
+		appendDebinarized(sb, chart, input, 0, input.size(), startSymbol);
+		sb.append(')');
+		return sb.toString();
+	}
 
-				Set<Rule> currentRightRules = m_mapRightSymbolBinaryRules.get(t.getVar());
-				if(currentRightRules != null)
-					for(Rule r: currentRightRules){
-						rightRules.put(m_mapRuleToNum.get(r), t);
-					}
-			}
+	/**
+	 * Follow the backpointers of a chart entry and add its de-binarized nodes under the given node.
+	 * A node of a binarized symbol is not created; its daughters are added in its place
+	 * @param parent the node to add to
+	 * @param chart the filled chart
+	 * @param input the words of the sentence
+	 * @param j the start of the span of the entry
+	 * @param i the end of the span of the entry (exclusive)
+	 * @param symbol the number of the symbol of the entry
+	 */
+	void addDebinarizedNodes(Node parent, Chart chart, List<String> input, int j, int i, int symbol){
+		CompiledGrammar cg = m_compiledGrammar;
+		Node n = parent;
+		if(!m_arrBinarizedSymbols[symbol]) {
+			n = new Node(cg.getSymbol(symbol));
+			parent.addDaughter(n);
 		}
 
-		public HashMap<Integer, ChartTransition> getRightRules(){ return rightRules; }
-		public HashMap<Integer, ChartTransition> getLeftRules(){ return leftRules; }
-
-		public void addTransition(ChartTransition t){
-			String var = t.variable;
-			ChartTransition oldTransition = nodeTransitions.get(var);
-			if(oldTransition == null || t.getProbability() < oldTransition.getProbability()){
-				nodeTransitions.put(var, t);
+		int cell = chart.cell(j, i);
+		int rule = chart.getRule(cell, symbol);
+		int split = chart.getSplit(cell, symbol);
+		if(rule == Chart.TERMINAL) {
+			n.addDaughter(new Node(input.get(j)));
+		} else if(split == Chart.UNARY) {
+			int[] chain = cg.m_arrClosureChain[rule];
+			for(int c = 0; c < chain.length - 1; c++) {
+				int middle = cg.m_arrRuleLeft[chain[c]];
+				if(!m_arrBinarizedSymbols[middle]) {
+					Node middleNode = new Node(cg.getSymbol(middle));
+					n.addDaughter(middleNode);
+					n = middleNode;
+				}
 			}
+			addDebinarizedNodes(n, chart, input, j, i, cg.m_arrClosureChild[rule]);
+		} else {
+			addDebinarizedNodes(n, chart, input, j, split, cg.m_arrRuleLeft[rule]);
+			addDebinarizedNodes(n, chart, input, split, i, cg.m_arrRuleRight[rule]);
 		}
+	}
 
-		public String toString() {
-			StringBuffer sb = new StringBuffer();
-			for(ChartTransition t: nodeTransitions.values()) {
-				sb.append(t.toString() + "," + t.getProbability() + "\n");
-			}
-			return sb.toString();
+	/**
+	 * Follow the backpointers of a chart entry and append the brackets of its de-binarized nodes.
+	 * The brackets of a binarized symbol are not written, only those of its daughters
+	 * @param sb the string to append to, which ends after the label of the parent node and a space
+	 * @param chart the filled chart
+	 * @param input the words of the sentence
+	 * @param j the start of the span of the entry
+	 * @param i the end of the span of the entry (exclusive)
+	 * @param symbol the number of the symbol of the entry
+	 */
+	void appendDebinarized(StringBuilder sb, Chart chart, List<String> input, int j, int i, int symbol){
+		CompiledGrammar cg = m_compiledGrammar;
+		int closing = 0;
+		if(!m_arrBinarizedSymbols[symbol]) {
+			sb.append('(').append(cg.getSymbol(symbol)).append(' ');
+			closing++;
 		}
 
-		public Map<String, ChartTransition> getTransitions(){
-			return nodeTransitions;
+		int cell = chart.cell(j, i);
+		int rule = chart.getRule(cell, symbol);
+		int split = chart.getSplit(cell, symbol);
+		if(rule == Chart.TERMINAL) {
+			sb.append(input.get(j));
+		} else if(split == Chart.UNARY) {
+			int[] chain = cg.m_arrClosureChain[rule];
+			for(int c = 0; c < chain.length - 1; c++) {
+				int middle = cg.m_arrRuleLeft[chain[c]];
+				if(!m_arrBinarizedSymbols[middle]) {
+					sb.append('(').append(cg.getSymbol(middle)).append(' ');
+					closing++;
+				}
+			}
+			appendDebinarized(sb, chart, input, j, i, cg.m_arrClosureChild[rule]);
+		} else {
+			appendDebinarized(sb, chart, input, j, split, cg.m_arrRuleLeft[rule]);
+			sb.append(' ');
+			appendDebinarized(sb, chart, input, split, i, cg.m_arrRuleRight[rule]);
 		}
+		for(; closing > 0; closing--)
+			sb.append(')');
 	}
 }
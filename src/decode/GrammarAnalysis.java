@@ -0,0 +1,344 @@
+package decode;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CLASS: GrammarAnalysis
+ *
+ * Definition: the static properties of the symbols of a CompiledGrammar which bound where they may be found in
+ *             a parse of a sentence
+ * Role: tell, before any rule is tried, which symbols of every cell of a chart can be part of a parse, so that
+ *       the CKY algorithm does not derive the others
+ * Responsibility: compute once per grammar the yield lengths, the left and right corners, and the words before
+ *                 and after every symbol, and restrict the cells of a chart with them
+ *
+ * A symbol A can only span the words j..i-1 of a parse of a sentence of n words if:
+ * - i - j is between the minimal and the maximal yield of A. The maximal yield is UNBOUNDED when A derives a
+ *   symbol which derives itself again through a binary rule
+ * - A is a left corner of the start symbol when j = 0, and otherwise a left corner of the right child of a
+ *   binary rule, with j at least the least number of words before A in any parse
+ * - A is a right corner of the start symbol when i = n, and otherwise a right corner of the left child of a
+ *   binary rule, with n - i at least the least number of words after A in any parse
+ * The symbols added by the binarization are always right children, so they never begin the sentence and are
+ * preceded by at least the daughters of their constituent before them.
+ *
+ * Only the useful rules are considered: those whose children derive some words and whose parent is reachable
+ * from the start symbol. Every bound is turned into bit sets of symbols by length, so that the symbols of a
+ * cell are found with a few AND operations.
+ */
+public class GrammarAnalysis {
+
+	public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+	private final int m_nSymbols;
+	private final int m_nWords;
+
+	// The minimal and maximal number of words derived by every symbol, UNBOUNDED for a symbol which derives
+	// no words at all (minimal) or arbitrarily many (maximal)
+	private final int[] m_arrMinYield;
+	private final int[] m_arrMaxYield;
+
+	// The minimal number of words before and after every symbol in a parse, UNBOUNDED for the symbols which
+	// are not reachable from the start symbol
+	private final int[] m_arrMinBefore;
+	private final int[] m_arrMinAfter;
+
+	// For every symbol, the bit sets of the symbols which may begin and end a constituent of it, itself included
+	private final long[][] m_arrLeftCorners;
+	private final long[][] m_arrRightCorners;
+
+	// The symbols which may begin (end) the sentence, and those which may begin (end) elsewhere
+	private final long[] m_arrSentenceStart;
+	private final long[] m_arrInnerStart;
+	private final long[] m_arrSentenceEnd;
+	private final long[] m_arrInnerEnd;
+
+	// By length, the symbols whose yield may have that length, and those which may have that many words before
+	// and after them. The last set of every table holds for all the longer lengths
+	private final long[][] m_arrYieldMasks;
+	private final long[][] m_arrBeforeMasks;
+	private final long[][] m_arrAfterMasks;
+
+	private final LongAdder m_nCells = new LongAdder();
+	private final LongAdder m_nClosedCells = new LongAdder();
+	private final LongAdder m_nSymbolCells = new LongAdder();
+	private final LongAdder m_nRemovedSymbols = new LongAdder();
+
+	/**
+	 * Analyze the symbols of a grammar
+	 * @param cg the compiled grammar
+	 * @param startSymbol the number of the start symbol
+	 */
+	GrammarAnalysis(CompiledGrammar cg, int startSymbol) {
+		m_nSymbols = cg.getSymbolCount();
+		m_nWords = (m_nSymbols + 63) >>> 6;
+		int ruleCount = cg.getRuleCount();
+
+		m_arrMinYield = minYields(cg);
+
+		// The useful rules
+		boolean[] useful = new boolean[ruleCount];
+		for (int r = 0; r < ruleCount; r++)
+			useful[r] = m_arrMinYield[cg.m_arrRuleLeft[r]] != UNBOUNDED &&
+					(cg.m_arrRuleRight[r] == -1 || m_arrMinYield[cg.m_arrRuleRight[r]] != UNBOUNDED);
+		boolean[] reachable = new boolean[m_nSymbols];
+		reachable[startSymbol] = true;
+		for (boolean changed = true; changed; ) {
+			changed = false;
+			for (int r = 0; r < ruleCount; r++) {
+				if (!useful[r] || !reachable[cg.m_arrRuleParent[r]])
+					continue;
+				changed |= !reachable[cg.m_arrRuleLeft[r]];
+				reachable[cg.m_arrRuleLeft[r]] = true;
+				if (cg.m_arrRuleRight[r] != -1) {
+					changed |= !reachable[cg.m_arrRuleRight[r]];
+					reachable[cg.m_arrRuleRight[r]] = true;
+				}
+			}
+		}
+		for (int r = 0; r < ruleCount; r++)
+			useful[r] &= reachable[cg.m_arrRuleParent[r]];
+
+		m_arrMaxYield = maxYields(cg, useful);
+		m_arrMinBefore = minContext(cg, useful, startSymbol, true);
+		m_arrMinAfter = minContext(cg, useful, startSymbol, false);
+
+		// The corners: a parent has the corners of its left (right) child, and of the only child of a unary rule
+		m_arrLeftCorners = new long[m_nSymbols][m_nWords];
+		m_arrRightCorners = new long[m_nSymbols][m_nWords];
+		for (int s = 0; s < m_nSymbols; s++) {
+			set(m_arrLeftCorners[s], s);
+			set(m_arrRightCorners[s], s);
+		}
+		for (boolean changed = true; changed; ) {
+			changed = false;
+			for (int r = 0; r < ruleCount; r++) {
+				if (!useful[r])
+					continue;
+				int parent = cg.m_arrRuleParent[r];
+				int right = cg.m_arrRuleRight[r];
+				changed |= or(m_arrLeftCorners[parent], m_arrLeftCorners[cg.m_arrRuleLeft[r]]);
+				changed |= or(m_arrRightCorners[parent], m_arrRightCorners[right == -1 ? cg.m_arrRuleLeft[r] : right]);
+			}
+		}
+
+		m_arrSentenceStart = m_arrLeftCorners[startSymbol].clone();
+		m_arrSentenceEnd = m_arrRightCorners[startSymbol].clone();
+		m_arrInnerStart = new long[m_nWords];
+		m_arrInnerEnd = new long[m_nWords];
+		for (int r = 0; r < ruleCount; r++) {
+			if (!useful[r] || cg.m_arrRuleRight[r] == -1)
+				continue;
+			or(m_arrInnerStart, m_arrLeftCorners[cg.m_arrRuleRight[r]]);
+			or(m_arrInnerEnd, m_arrRightCorners[cg.m_arrRuleLeft[r]]);
+		}
+
+		m_arrYieldMasks = lengthMasks(m_arrMinYield, m_arrMaxYield);
+		m_arrBeforeMasks = lengthMasks(m_arrMinBefore, null);
+		m_arrAfterMasks = lengthMasks(m_arrMinAfter, null);
+	}
+
+	private static void set(long[] bits, int symbol) {
+		bits[symbol >>> 6] |= 1L << symbol;
+	}
+
+	// Add the symbols of a bit set to another, and tell whether any was added
+	private static boolean or(long[] bits, long[] added) {
+		boolean changed = false;
+		for (int w = 0; w < bits.length; w++) {
+			changed |= (added[w] & ~bits[w]) != 0;
+			bits[w] |= added[w];
+		}
+		return changed;
+	}
+
+	private static int add(int a, int b) {
+		return a == UNBOUNDED || b == UNBOUNDED || (long) a + b >= UNBOUNDED ? UNBOUNDED : a + b;
+	}
+
+	// The yield of a rule from the yields of its children
+	private static int ruleYield(CompiledGrammar cg, int rule, int[] yields) {
+		int right = cg.m_arrRuleRight[rule];
+		return right == -1 ? yields[cg.m_arrRuleLeft[rule]] : add(yields[cg.m_arrRuleLeft[rule]], yields[right]);
+	}
+
+	// The minimal yield of every symbol: 1 for a tag, or the least yield of its rules
+	private int[] minYields(CompiledGrammar cg) {
+		int[] yields = new int[m_nSymbols];
+		for (int s = 0; s < m_nSymbols; s++)
+			yields[s] = cg.getLexicon().isTag(s) ? 1 : UNBOUNDED;
+		for (boolean changed = true; changed; ) {
+			changed = false;
+			for (int r = 0; r < cg.getRuleCount(); r++) {
+				int y = ruleYield(cg, r, yields);
+				if (y < yields[cg.m_arrRuleParent[r]]) {
+					yields[cg.m_arrRuleParent[r]] = y;
+					changed = true;
+				}
+			}
+		}
+		return yields;
+	}
+
+	/**
+	 * The maximal yield of every symbol: 1 for a tag, or the greatest yield of its useful rules. Without a
+	 * recursion through a binary rule the longest derivations are at most as deep as there are symbols, so
+	 * the yields which still grow after that many rounds are unbounded
+	 */
+	private int[] maxYields(CompiledGrammar cg, boolean[] useful) {
+		int[] yields = new int[m_nSymbols];
+		for (int s = 0; s < m_nSymbols; s++)
+			yields[s] = cg.getLexicon().isTag(s) ? 1 : 0;
+		int round = 0;
+		for (boolean changed = true; changed; round++) {
+			changed = false;
+			for (int r = 0; r < cg.getRuleCount(); r++) {
+				if (!useful[r])
+					continue;
+				int y = ruleYield(cg, r, yields);
+				int parent = cg.m_arrRuleParent[r];
+				if (y > yields[parent]) {
+					yields[parent] = round > m_nSymbols ? UNBOUNDED : y;
+					changed = true;
+				}
+			}
+		}
+		return yields;
+	}
+
+	/**
+	 * The minimal number of words before (or after) every symbol in a parse: 0 for the start symbol, or the
+	 * least number over the useful rules which derive the symbol. The right child of a binary rule has the
+	 * minimal yield of the left child before it, and the left child has that of the right child after it
+	 */
+	private int[] minContext(CompiledGrammar cg, boolean[] useful, int startSymbol, boolean before) {
+		int[] context = new int[m_nSymbols];
+		Arrays.fill(context, UNBOUNDED);
+		context[startSymbol] = 0;
+		for (boolean changed = true; changed; ) {
+			changed = false;
+			for (int r = 0; r < cg.getRuleCount(); r++) {
+				if (!useful[r])
+					continue;
+				int parent = context[cg.m_arrRuleParent[r]];
+				int left = cg.m_arrRuleLeft[r];
+				int right = cg.m_arrRuleRight[r];
+				int leftContext = right == -1 || before ? parent : add(parent, m_arrMinYield[right]);
+				if (leftContext < context[left]) {
+					context[left] = leftContext;
+					changed = true;
+				}
+				if (right == -1)
+					continue;
+				int rightContext = before ? add(parent, m_arrMinYield[left]) : parent;
+				if (rightContext < context[right]) {
+					context[right] = rightContext;
+					changed = true;
+				}
+			}
+		}
+		return context;
+	}
+
+	/**
+	 * Turn bounds of lengths into bit sets by length
+	 * @param min the minimal length of every symbol, UNBOUNDED for none
+	 * @param max the maximal length of every symbol, UNBOUNDED for no limit, or null for no limit at all
+	 * @return for every length up to one above the greatest bound, the symbols whose bounds hold the length
+	 */
+	private long[][] lengthMasks(int[] min, int[] max) {
+		int last = 0;
+		for (int s = 0; s < m_nSymbols; s++) {
+			if (min[s] != UNBOUNDED)
+				last = Math.max(last, min[s] + 1);
+			if (max != null && max[s] != UNBOUNDED)
+				last = Math.max(last, max[s] + 1);
+		}
+		long[][] masks = new long[last + 1][m_nWords];
+		for (int length = 0; length <= last; length++)
+			for (int s = 0; s < m_nSymbols; s++)
+				if (min[s] <= length && (max == null || length <= max[s]))
+					set(masks[length], s);
+		return masks;
+	}
+
+	private static long[] mask(long[][] masks, int length) {
+		return masks[Math.min(length, masks.length - 1)];
+	}
+
+	/**
+	 * Restrict every cell of more than one word of the chart of a sentence to the symbols which can be found
+	 * there in a parse. The cells of single words are left as they are, so that they may still be copied
+	 * from the word cache, as their symbols which can not be used are filtered out one cell above
+	 * @param chart the chart of the sentence, which may already be restricted but is otherwise empty
+	 * @param n the number of words of the sentence
+	 */
+	void apply(Chart chart, int n) {
+		long[] allowed = chart.newSymbolSet();
+		int cells = 0;
+		int closed = 0;
+		long removed = 0;
+		for (int len = 2; len <= n; len++) {
+			long[] yieldMask = mask(m_arrYieldMasks, len);
+			for (int j = 0; j + len <= n; j++) {
+				int i = j + len;
+				long[] start = j == 0 ? m_arrSentenceStart : m_arrInnerStart;
+				long[] end = i == n ? m_arrSentenceEnd : m_arrInnerEnd;
+				long[] before = mask(m_arrBeforeMasks, j);
+				long[] after = mask(m_arrAfterMasks, n - i);
+				int count = 0;
+				for (int w = 0; w < m_nWords; w++) {
+					allowed[w] = start[w] & end[w] & yieldMask[w] & before[w] & after[w];
+					count += Long.bitCount(allowed[w]);
+				}
+				int cell = chart.cell(j, i);
+				chart.intersectAllowed(cell, allowed);
+				cells++;
+				if (count == 0)
+					closed++;
+				removed += m_nSymbols - count;
+			}
+		}
+		m_nCells.add(cells);
+		m_nClosedCells.add(closed);
+		m_nSymbolCells.add((long) cells * m_nSymbols);
+		m_nRemovedSymbols.add(removed);
+	}
+
+	public int getMinYield(int symbol) {
+		return m_arrMinYield[symbol];
+	}
+
+	public int getMaxYield(int symbol) {
+		return m_arrMaxYield[symbol];
+	}
+
+	/**
+	 * @return the number of symbols whose yield is bounded
+	 */
+	public int getBoundedSymbols() {
+		int bounded = 0;
+		for (int s = 0; s < m_nSymbols; s++)
+			if (m_arrMaxYield[s] != UNBOUNDED && m_arrMaxYield[s] > 0)
+				bounded++;
+		return bounded;
+	}
+
+	/**
+	 * @return the fraction of the cells of more than one word of the restricted charts in which no symbol can be found
+	 */
+	public double getClosedRatio() {
+		long cells = m_nCells.sum();
+		return cells == 0 ? 0.0 : m_nClosedCells.sum() / (double) cells;
+	}
+
+	/**
+	 * @return the fraction of the symbols of the cells of more than one word of the restricted charts which
+	 *         were ruled out
+	 */
+	public double getRemovedRatio() {
+		long symbols = m_nSymbolCells.sum();
+		return symbols == 0 ? 0.0 : m_nRemovedSymbols.sum() / (double) symbols;
+	}
+}
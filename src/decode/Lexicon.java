@@ -0,0 +1,176 @@
+package decode;
+
+import grammar.Rule;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * CLASS: Lexicon
+ *
+ * Definition: the lexical rules of a Grammar in a form suited for tagging the words of a sentence
+ * Role: map every word to its signature class and every signature class to the tags of its words
+ * Responsibility: apply the heuristics for words which are not in the training vocabulary, and hold the
+ *                 numbered tags and scores of every class in vectors which are built once, with the grammar
+ *
+ * The signature classes are, in order of precedence:
+ * - a known word, tagged with all of its pre-terminals
+ * - a word ending in a Hebrew suffix whose stem is known, tagged as its stem
+ * - a number, tagged CD
+ * - a word containing U, tagged NNP
+ * - an unknown word, tagged with all the pre-terminals of UNKNOWN. The open classes, and verbs for words
+ *   starting with a verb prefix letter, are favoured
+ */
+public class Lexicon {
+
+	private static final double MAX_PROBABILITY = 0.0;
+
+	// Two-letter endings (plural, possessive) which are stripped from unknown words
+	private static final String[] SUFFIXES = {"IM", "WT", "IT", "TW", "TH", "TM", "TN", "KM", "KN"};
+
+	// One-letter endings which are stripped from unknown words
+	private static final String SHORT_SUFFIXES = "IHW";
+
+	// First letters of the future tense ("AITN") and of the participle ("M") of verbs
+	private static final String VERB_PREFIXES = "AITNM";
+
+	// Pre-terminals which are favoured for unknown words
+	private static final String[] OPEN_TAGS = {"NN", "NNP", "NNT", "JJ"};
+	private static final String VERB_TAG = "VB";
+
+	// The tags of a signature class and their scores (-LogProb), in the order they are added to the chart
+	static final class TagVector {
+		final int[] m_arrTags;
+		final double[] m_arrScores;
+
+		TagVector(int[] tags, double[] scores) {
+			m_arrTags = tags;
+			m_arrScores = scores;
+		}
+	}
+
+	private final Map<String, TagVector> m_mapKnownWords = new HashMap<String, TagVector>();
+	private final TagVector m_numberTags;
+	private final TagVector m_properNounTags;
+	private final TagVector m_unknownTags;
+	private final TagVector m_unknownVerbTags;
+
+	// Whether every symbol of the grammar may be tagged over a word
+	private final boolean[] m_arrTagSymbols;
+
+	// The two-letter suffixes as a table indexed by their two (ASCII) letters
+	private final boolean[][] m_arrSuffixes = new boolean[128][128];
+
+	/**
+	 * @param lexicalRules the lexical rules of the grammar by word
+	 * @param cg the compiled grammar, which numbers the pre-terminals
+	 */
+	public Lexicon(Map<String, Set<Rule>> lexicalRules, CompiledGrammar cg) {
+		for (Map.Entry<String, Set<Rule>> e : lexicalRules.entrySet()) {
+			Set<Rule> rules = e.getValue();
+			int[] tags = new int[rules.size()];
+			double[] scores = new double[rules.size()];
+			int t = 0;
+			for (Rule r : rules) {
+				tags[t] = cg.getSymbolNum(r.getLHS().toString());
+				scores[t] = r.getMinusLogProb();
+				t++;
+			}
+			m_mapKnownWords.put(e.getKey(), new TagVector(tags, scores));
+		}
+
+		m_numberTags = new TagVector(new int[] {cg.getSymbolNum("CD")}, new double[] {MAX_PROBABILITY});
+		m_properNounTags = new TagVector(new int[] {cg.getSymbolNum("NNP")}, new double[] {MAX_PROBABILITY});
+		m_unknownTags = unknownTags(m_mapKnownWords.get("UNKNOWN"), cg, false);
+		m_unknownVerbTags = unknownTags(m_mapKnownWords.get("UNKNOWN"), cg, true);
+
+		m_arrTagSymbols = new boolean[cg.getSymbolCount()];
+		for (TagVector tags : m_mapKnownWords.values())
+			for (int tag : tags.m_arrTags)
+				m_arrTagSymbols[tag] = true;
+		for (TagVector tags : new TagVector[] {m_numberTags, m_properNounTags})
+			if (tags.m_arrTags[0] >= 0)
+				m_arrTagSymbols[tags.m_arrTags[0]] = true;
+
+		for (String suffix : SUFFIXES)
+			m_arrSuffixes[suffix.charAt(0)][suffix.charAt(1)] = true;
+	}
+
+	/**
+	 * Judging by the given train and gold sets, unseen words are often adjectives, so the score of the
+	 * open classes (and of verbs, if the word might be one) is replaced by its log, which lowers it
+	 * @param unknown the tags of UNKNOWN
+	 * @param cg the compiled grammar
+	 * @param mightBeVerb whether the word starts with a verb prefix letter
+	 * @return the tags of the unknown words of the class
+	 */
+	private static TagVector unknownTags(TagVector unknown, CompiledGrammar cg, boolean mightBeVerb) {
+		if (unknown == null)
+			return new TagVector(new int[0], new double[0]);
+
+		double[] scores = unknown.m_arrScores.clone();
+		for (int t = 0; t < scores.length; t++) {
+			String tag = cg.getSymbol(unknown.m_arrTags[t]);
+			boolean favoured = mightBeVerb && tag.equals(VERB_TAG);
+			for (String openTag : OPEN_TAGS)
+				favoured |= tag.equals(openTag);
+			if (favoured)
+				scores[t] = Math.log(scores[t]);
+		}
+		return new TagVector(unknown.m_arrTags, scores);
+	}
+
+	/**
+	 * Find the tags of a word
+	 * @param word a word of a sentence
+	 * @return the tags of the signature class of the word
+	 */
+	TagVector lookup(String word) {
+		TagVector tags = m_mapKnownWords.get(word);
+		if (tags != null)
+			return tags;
+
+		// If the word ends with a known suffix, look for its stem, or for the stem with the final H
+		// which the suffix replaces
+		int length = word.length();
+		char last = word.charAt(length - 1);
+		if (length > 2 && isSuffix(word.charAt(length - 2), last)) {
+			String stem = word.substring(0, length - 2);
+			tags = m_mapKnownWords.get(stem);
+			if (tags == null)
+				tags = m_mapKnownWords.get(stem + "H");
+		} else if (SHORT_SUFFIXES.indexOf(last) != -1) {
+			tags = m_mapKnownWords.get(word.substring(0, length - 1));
+		}
+		if (tags != null)
+			return tags;
+
+		if (isNumber(word))
+			return m_numberTags;
+
+		if (word.indexOf('U') != -1)
+			return m_properNounTags;
+
+		return VERB_PREFIXES.indexOf(word.charAt(0)) != -1 ? m_unknownVerbTags : m_unknownTags;
+	}
+
+	/**
+	 * @param symbol the number of a symbol
+	 * @return true if some word may be tagged with the symbol
+	 */
+	boolean isTag(int symbol) {
+		return m_arrTagSymbols[symbol];
+	}
+
+	private boolean isSuffix(char first, char second) {
+		return first < 128 && second < 128 && m_arrSuffixes[first][second];
+	}
+
+	private static boolean isNumber(String word) {
+		for (int c = 0; c < word.length(); c++)
+			if (word.charAt(c) < '0' || word.charAt(c) > '9')
+				return false;
+		return true;
+	}
+}
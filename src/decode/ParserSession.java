@@ -0,0 +1,102 @@
+package decode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import tree.Node;
+import tree.Tree;
+
+/**
+ * CLASS: ParserSession
+ *
+ * Definition: the incremental parse of a sentence whose words arrive one at a time
+ * Role: extend the chart by one column for every new word, so that the parse of the whole sentence is
+ *       available as soon as its last column is computed, without parsing its prefix again
+ * Responsibility: keep the chart and the words of the sentence, and build from the chart either the best
+ *                 parse of the words fed so far or the best analysis of them as a sequence of constituents
+ *
+ * The CKY algorithm fills the chart column by column, and a column only depends on the columns to its left,
+ * so feeding the words one at a time gives the same chart as decoding the whole sentence. Pruning and the
+ * coarse pass, which need the whole sentence, are not applied. A session is used by a single thread.
+ */
+public class ParserSession {
+
+	private final Decode m_decoder;
+	private final CompiledGrammar m_grammar;
+	private final WordCache m_wordCache;
+	private final SpanCache m_spanCache;
+	private final int m_nStartSymbol;
+
+	private final List<String> m_lstWords = new ArrayList<String>();
+	private final Chart m_chart;
+
+	ParserSession(Decode decoder, CompiledGrammar cg, WordCache wordCache, SpanCache spanCache, String startSymbol) {
+		m_decoder = decoder;
+		m_grammar = cg;
+		m_wordCache = wordCache;
+		m_spanCache = spanCache;
+		m_nStartSymbol = cg.getSymbolNum(startSymbol);
+		m_chart = new Chart(0, cg.getSymbolCount());
+	}
+
+	/**
+	 * Add a word at the end of the sentence and compute the cells of all the spans ending with it
+	 * @param word the next word of the sentence
+	 */
+	public void feed(String word) {
+		m_lstWords.add(word);
+		int i = m_lstWords.size();
+		m_chart.extend(i);
+
+		m_decoder.tagWord(m_grammar, m_wordCache, m_chart, m_chart.cell(i - 1, i), word);
+		for (int j = i - 2; j >= 0; j--)
+			m_decoder.fillSpan(m_grammar, m_spanCache, m_chart, m_lstWords, j, i, false);
+	}
+
+	/**
+	 * @return the number of words fed so far
+	 */
+	public int size() {
+		return m_lstWords.size();
+	}
+
+	/**
+	 * @return true if the words fed so far have a parse
+	 */
+	public boolean hasParse() {
+		return !m_lstWords.isEmpty() && m_chart.getScore(m_chart.cell(0, m_lstWords.size()), m_nStartSymbol) != Chart.EMPTY;
+	}
+
+	/**
+	 * @return the de-binarized parse with the lowest -LogProb of the words fed so far, or null if they have none
+	 */
+	public Tree getParse() {
+		if (!hasParse())
+			return null;
+		Tree t = new Tree(new Node("TOP"));
+		m_decoder.addDebinarizedNodes(t.getRoot(), m_chart, m_lstWords, 0, m_lstWords.size(), m_nStartSymbol);
+		return t;
+	}
+
+	/**
+	 * @return the bracketed parse with the lowest -LogProb of the words fed so far, or null if they have none
+	 */
+	public String getParseString() {
+		if (!hasParse())
+			return null;
+		StringBuilder sb = new StringBuilder("(TOP ");
+		m_decoder.appendDebinarized(sb, m_chart, m_lstWords, 0, m_lstWords.size(), m_nStartSymbol);
+		sb.append(')');
+		return sb.toString();
+	}
+
+	/**
+	 * Analyze the words fed so far as a sequence of constituents, which is available even when the prefix of
+	 * a sentence has no parse of its own. The sequence has as few constituents as possible, and among those
+	 * the lowest -LogProb. Every constituent is the best symbol of its cell, binarized symbols excluded
+	 * @return a tree whose TOP node has the de-binarized constituents as daughters
+	 */
+	public Tree getPrefixAnalysis() {
+		return m_decoder.fragmentTree(m_chart, m_lstWords, true);
+	}
+}
@@ -0,0 +1,318 @@
+package decode;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CLASS: Recognizer
+ *
+ * Definition: the CKY algorithm over the boolean semiring, with a bit set of symbols for every cell
+ * Role: find, before anything is scored, which items of a chart can be part of a parse of the sentence, so
+ *       that the Viterbi pass never derives the others, and tell at once when the sentence has no parse at all
+ * Responsibility: compute bottom-up the symbols derivable in every cell and top-down those which are also
+ *                 reachable from the start symbol, and restrict the cells of the chart to the latter
+ *
+ * A cell is a long[] with one bit per symbol. The binary rules are grouped by their left child and then by
+ * their right child, and every (left, right) pair holds the bit set of its parents, so that a pair found in
+ * a split point adds all of its parents with a few OR operations, and the parents of a cell which are
+ * reachable are found with a few AND operations. The unary closure is a bit set of the symbols above (and
+ * below) every symbol.
+ *
+ * The derivable items follow the rules of the chart exactly: the symbols of a cell which is restricted must
+ * be allowed in it, the unary closure only starts from the symbols derived by binary rules (or tags), and the
+ * cells which must be constituents drop the binarized symbols derived by binary rules. So every item of a
+ * parse which the Viterbi pass can find is kept. The cells of single words are left as they are, so that
+ * they may still be copied from the word cache, as their unreachable tags are filtered out one cell above.
+ */
+public class Recognizer {
+
+	private final CompiledGrammar m_grammar;
+	private final int m_nWords;
+
+	// For every symbol, the symbols above it and below it through chains of unary rules
+	private final long[][] m_arrClosureUp;
+	private final long[][] m_arrClosureDown;
+
+	// The (left, right) pairs of the binary rules of the left symbol s are at m_arrPairOffsets[s] ..
+	// m_arrPairOffsets[s + 1] - 1, with their right symbol and the bit set of their parents
+	private final int[] m_arrPairOffsets;
+	private final int[] m_arrPairRight;
+	private final long[][] m_arrPairParents;
+
+	// For every left symbol, the bit set of the right symbols of its binary rules
+	private final long[][] m_arrRights;
+
+	// The bit set of the binarized symbols
+	private final long[] m_arrBinarized;
+
+	private final LongAdder m_nUnparsable = new LongAdder();
+	private final LongAdder m_nDerivable = new LongAdder();
+	private final LongAdder m_nReachable = new LongAdder();
+
+	// The scratch arrays of a thread: by cell, the derivable symbols, the symbols derived before the unary
+	// closure, and the reachable symbols
+	private static final class Scratch {
+		long[][] m_arrDerivable = new long[0][];
+		long[][] m_arrBase = new long[0][];
+		long[][] m_arrReachable = new long[0][];
+	}
+
+	private final ThreadLocal<Scratch> m_scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	Recognizer(Decode decoder, CompiledGrammar cg) {
+		m_grammar = cg;
+		int symbolCount = cg.getSymbolCount();
+		m_nWords = (symbolCount + 63) >>> 6;
+
+		m_arrClosureUp = new long[symbolCount][m_nWords];
+		m_arrClosureDown = new long[symbolCount][m_nWords];
+		m_arrBinarized = new long[m_nWords];
+		for (int s = 0; s < symbolCount; s++) {
+			for (int c = cg.m_arrClosureOffsets[s]; c < cg.m_arrClosureOffsets[s + 1]; c++) {
+				set(m_arrClosureUp[s], cg.m_arrClosureParent[c]);
+				set(m_arrClosureDown[cg.m_arrClosureParent[c]], s);
+			}
+			if (decoder.isBinarized(s))
+				set(m_arrBinarized, s);
+		}
+
+		// The rules of a left symbol are grouped by their right symbol
+		int pairs = 0;
+		int[][] rights = new int[symbolCount][];
+		for (int left = 0; left < symbolCount; left++) {
+			int first = cg.m_arrBinaryOffsets[left];
+			int[] r = new int[cg.m_arrBinaryOffsets[left + 1] - first];
+			for (int b = 0; b < r.length; b++)
+				r[b] = cg.m_arrBinaryRight[first + b];
+			r = Arrays.stream(r).distinct().sorted().toArray();
+			rights[left] = r;
+			pairs += r.length;
+		}
+		m_arrPairOffsets = new int[symbolCount + 1];
+		m_arrPairRight = new int[pairs];
+		m_arrPairParents = new long[pairs][m_nWords];
+		m_arrRights = new long[symbolCount][m_nWords];
+		for (int left = 0; left < symbolCount; left++) {
+			int offset = m_arrPairOffsets[left];
+			for (int p = 0; p < rights[left].length; p++) {
+				m_arrPairRight[offset + p] = rights[left][p];
+				set(m_arrRights[left], rights[left][p]);
+			}
+			for (int b = cg.m_arrBinaryOffsets[left]; b < cg.m_arrBinaryOffsets[left + 1]; b++)
+				set(m_arrPairParents[offset + Arrays.binarySearch(rights[left], cg.m_arrBinaryRight[b])], cg.m_arrBinaryParent[b]);
+			m_arrPairOffsets[left + 1] = offset + rights[left].length;
+		}
+	}
+
+	private static void set(long[] bits, int symbol) {
+		bits[symbol >>> 6] |= 1L << symbol;
+	}
+
+	private static boolean get(long[] bits, int symbol) {
+		return (bits[symbol >>> 6] & (1L << symbol)) != 0;
+	}
+
+	/**
+	 * Find the items of the chart of a sentence which can be part of a parse, and restrict the cells of more
+	 * than one word to them
+	 * @param chart the chart of the sentence, which may already be restricted but is otherwise empty
+	 * @param input a non empty list of words which represent the sentence
+	 * @param startSymbol the number of the start symbol
+	 * @return false if the sentence has no parse in the chart, in which case the chart is not restricted
+	 */
+	boolean restrict(Chart chart, List<String> input, int startSymbol) {
+		int n = input.size();
+		Scratch s = recognize(chart, input);
+		int top = chart.cell(0, n);
+		if (!get(s.m_arrDerivable[top], startSymbol)) {
+			m_nUnparsable.increment();
+			return false;
+		}
+
+		long[][] derivable = s.m_arrDerivable;
+		long[][] base = s.m_arrBase;
+		long[][] reachable = s.m_arrReachable;
+		for (int len = 1; len <= n; len++)
+			for (int j = 0; j + len <= n; j++)
+				Arrays.fill(reachable[chart.cell(j, j + len)], 0);
+		set(reachable[top], startSymbol);
+
+		// Top-down: the symbols below a reachable symbol through unary chains, then the children of its binary rules
+		long derivableCount = 0;
+		long reachableCount = 0;
+		long[] parents = new long[m_nWords];
+		for (int len = n; len >= 1; len--) {
+			for (int j = 0; j + len <= n; j++) {
+				int i = j + len;
+				int cell = chart.cell(j, i);
+				long[] r = reachable[cell];
+				for (int w = 0; w < m_nWords; w++) {
+					for (long bits = r[w]; bits != 0; bits &= bits - 1) {
+						long[] below = m_arrClosureDown[(w << 6) + Long.numberOfTrailingZeros(bits)];
+						for (int v = 0; v < m_nWords; v++)
+							r[v] |= below[v] & base[cell][v];
+					}
+				}
+				for (int w = 0; w < m_nWords; w++) {
+					derivableCount += Long.bitCount(derivable[cell][w]);
+					reachableCount += Long.bitCount(r[w]);
+				}
+				if (len == 1)
+					continue;
+
+				// The parents of binary rules which are reachable
+				boolean any = false;
+				for (int w = 0; w < m_nWords; w++) {
+					parents[w] = r[w] & base[cell][w];
+					any |= parents[w] != 0;
+				}
+				if (!any)
+					continue;
+				for (int k = j + 1; k < i; k++) {
+					long[] leftDerivable = derivable[chart.cell(j, k)];
+					long[] rightDerivable = derivable[chart.cell(k, i)];
+					long[] leftReachable = reachable[chart.cell(j, k)];
+					long[] rightReachable = reachable[chart.cell(k, i)];
+					for (int w = 0; w < m_nWords; w++) {
+						for (long bits = leftDerivable[w]; bits != 0; bits &= bits - 1) {
+							int left = (w << 6) + Long.numberOfTrailingZeros(bits);
+							if (!intersects(m_arrRights[left], rightDerivable))
+								continue;
+							for (int p = m_arrPairOffsets[left]; p < m_arrPairOffsets[left + 1]; p++) {
+								int right = m_arrPairRight[p];
+								if (!get(rightDerivable, right) || !intersects(m_arrPairParents[p], parents))
+									continue;
+								set(leftReachable, left);
+								set(rightReachable, right);
+							}
+						}
+					}
+				}
+			}
+		}
+		m_nDerivable.add(derivableCount);
+		m_nReachable.add(reachableCount);
+
+		for (int len = 2; len <= n; len++) {
+			for (int j = 0; j + len <= n; j++) {
+				int cell = chart.cell(j, j + len);
+				if (!chart.isClosed(cell))
+					chart.intersectAllowed(cell, reachable[cell]);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tell whether a sentence has a parse in a chart, without restricting it
+	 * @param chart the chart of the sentence, which may be restricted but is otherwise empty
+	 * @param input a non empty list of words which represent the sentence
+	 * @param startSymbol the number of the start symbol
+	 * @return true if the start symbol is derivable over the whole sentence
+	 */
+	boolean isParsable(Chart chart, List<String> input, int startSymbol) {
+		return get(recognize(chart, input).m_arrDerivable[chart.cell(0, input.size())], startSymbol);
+	}
+
+	private static boolean intersects(long[] a, long[] b) {
+		for (int w = 0; w < a.length; w++)
+			if ((a[w] & b[w]) != 0)
+				return true;
+		return false;
+	}
+
+	// Bottom-up: the symbols derivable in every cell of the sentence
+	private Scratch recognize(Chart chart, List<String> input) {
+		int n = input.size();
+		Scratch s = m_scratch.get();
+		int cells = chart.getCellCount();
+		if (s.m_arrDerivable.length < cells) {
+			s.m_arrDerivable = new long[cells][m_nWords];
+			s.m_arrBase = new long[cells][m_nWords];
+			s.m_arrReachable = new long[cells][m_nWords];
+		}
+		long[][] derivable = s.m_arrDerivable;
+		long[][] base = s.m_arrBase;
+		long[] unrestricted = new long[m_nWords];
+		Arrays.fill(unrestricted, -1L);
+
+		for (int len = 1; len <= n; len++) {
+			for (int j = 0; j + len <= n; j++) {
+				int i = j + len;
+				int cell = chart.cell(j, i);
+				long[] b = base[cell];
+				long[] d = derivable[cell];
+				Arrays.fill(b, 0);
+				Arrays.fill(d, 0);
+				if (chart.isClosed(cell))
+					continue;
+
+				if (len == 1) {
+					int[] tags = m_grammar.getLexicon().lookup(input.get(j)).m_arrTags;
+					for (int t = 0; t < tags.length; t++)
+						set(b, tags[t]);
+				} else {
+					for (int k = j + 1; k < i; k++) {
+						long[] left = derivable[chart.cell(j, k)];
+						long[] right = derivable[chart.cell(k, i)];
+						for (int w = 0; w < m_nWords; w++) {
+							for (long bits = left[w]; bits != 0; bits &= bits - 1) {
+								int symbol = (w << 6) + Long.numberOfTrailingZeros(bits);
+								if (!intersects(m_arrRights[symbol], right))
+									continue;
+								for (int p = m_arrPairOffsets[symbol]; p < m_arrPairOffsets[symbol + 1]; p++) {
+									if (!get(right, m_arrPairRight[p]))
+										continue;
+									long[] parents = m_arrPairParents[p];
+									for (int v = 0; v < m_nWords; v++)
+										b[v] |= parents[v];
+								}
+							}
+						}
+					}
+				}
+
+				// The symbols which are allowed in the cell, without the binarized ones of a constituent
+				long[] allowed = chart.isRestricted(cell) ? chart.getAllowed(cell) : unrestricted;
+				for (int w = 0; w < m_nWords; w++) {
+					b[w] &= allowed[w];
+					if (len > 1 && chart.isConstituent(cell))
+						b[w] &= ~m_arrBinarized[w];
+				}
+
+				// The unary closure of the symbols derived by binary rules (or tags)
+				for (int w = 0; w < m_nWords; w++) {
+					d[w] |= b[w];
+					for (long bits = b[w]; bits != 0; bits &= bits - 1) {
+						long[] above = m_arrClosureUp[(w << 6) + Long.numberOfTrailingZeros(bits)];
+						for (int v = 0; v < m_nWords; v++)
+							d[v] |= above[v] & allowed[v];
+					}
+				}
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * @return the number of sentences which the recognizer found to have no parse
+	 */
+	public long getUnparsable() {
+		return m_nUnparsable.sum();
+	}
+
+	/**
+	 * @return the fraction of the derivable items of the parsable sentences which are also reachable from the
+	 *         start symbol, and so are left to the Viterbi pass
+	 */
+	public double getReachableRatio() {
+		long derivable = m_nDerivable.sum();
+		return derivable == 0 ? 0.0 : m_nReachable.sum() / (double) derivable;
+	}
+}
@@ -0,0 +1,188 @@
+package decode;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CLASS: SpanCache
+ *
+ * Definition: a bounded cache from a sequence of words to the entries of the chart cell over it
+ * Role: let the decoder fill the cells of short, frequent word sequences (names, fixed phrases)
+ *       by copying, instead of applying the binary and unary rules to them again for every sentence
+ * Responsibility: be shared by all the decoding threads, evict the least recently used sequences once
+ *                 its estimated memory reaches its cap, and count its hits and misses
+ *
+ * Without pruning, the entries of a cell depend only on the words it spans, so copying them gives exactly
+ * the chart computed without the cache. The cells of the words below a copied cell are still computed
+ * (or copied) on their own, so the tree can be constructed from the copied backpointers. The split points
+ * are kept relative to the start of the span.
+ *
+ * The sequences are spread over STRIPES independent LRU maps by their hash, each with its own lock and
+ * an equal share of the memory cap.
+ */
+public class SpanCache {
+
+	private static final int STRIPES = 16;
+
+	// Estimated bytes of an entry of a cell, and of the cached sequence apart from its characters
+	private static final int BYTES_PER_ENTRY = 20;
+	private static final int BYTES_PER_SEQUENCE = 120;
+
+	// The entries of the cell over a sequence, in the order they were added to it
+	static final class Entry {
+		final int[] m_arrSymbols;
+		final double[] m_arrScores;
+		final int[] m_arrRules;
+		final int[] m_arrSplits;
+
+		/**
+		 * Copy the entries of a filled cell
+		 */
+		Entry(Chart chart, int cell, int start) {
+			int count = chart.getActiveCount(cell);
+			int[] active = chart.getActive(cell);
+			m_arrSymbols = new int[count];
+			m_arrScores = new double[count];
+			m_arrRules = new int[count];
+			m_arrSplits = new int[count];
+			for (int a = 0; a < count; a++) {
+				int symbol = active[a];
+				int split = chart.getSplit(cell, symbol);
+				m_arrSymbols[a] = symbol;
+				m_arrScores[a] = chart.getScore(cell, symbol);
+				m_arrRules[a] = chart.getRule(cell, symbol);
+				m_arrSplits[a] = split == Chart.UNARY ? split : split - start;
+			}
+		}
+
+		/**
+		 * Add the entries to the empty cell of the same sequence in another sentence
+		 */
+		void apply(Chart chart, int cell, int start) {
+			for (int a = 0; a < m_arrSymbols.length; a++) {
+				int split = m_arrSplits[a] == Chart.UNARY ? Chart.UNARY : m_arrSplits[a] + start;
+				chart.add(cell, m_arrSymbols[a], m_arrScores[a], m_arrRules[a], split);
+			}
+		}
+	}
+
+	private final int m_nMaxLength;
+	private final Stripe[] m_arrStripes = new Stripe[STRIPES];
+
+	private final LongAdder m_nHits = new LongAdder();
+	private final LongAdder m_nMisses = new LongAdder();
+	private final LongAdder m_nEvictions = new LongAdder();
+
+	/**
+	 * @param maxLength the maximal number of words of a cached sequence
+	 * @param maxBytes the estimated memory of the cache, beyond which sequences are evicted
+	 */
+	public SpanCache(int maxLength, long maxBytes) {
+		m_nMaxLength = maxLength;
+		for (int s = 0; s < STRIPES; s++)
+			m_arrStripes[s] = new Stripe(maxBytes / STRIPES);
+	}
+
+	public int getMaxLength() {
+		return m_nMaxLength;
+	}
+
+	/**
+	 * @param input the words of a sentence
+	 * @param j the start of the span
+	 * @param i the end of the span (exclusive)
+	 * @return the key of the words j..i-1
+	 */
+	static String key(List<String> input, int j, int i) {
+		return String.join(" ", input.subList(j, i));
+	}
+
+	/**
+	 * @param key the key of a sequence of words
+	 * @return the entries of the cell over the sequence, or null if it is not in the cache
+	 */
+	Entry get(String key) {
+		Stripe stripe = stripe(key);
+		Entry entry;
+		synchronized (stripe) {
+			entry = stripe.get(key);
+		}
+		if (entry == null)
+			m_nMisses.increment();
+		else
+			m_nHits.increment();
+		return entry;
+	}
+
+	void put(String key, Entry entry) {
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			stripe.add(key, entry);
+		}
+	}
+
+	private Stripe stripe(String key) {
+		int h = key.hashCode();
+		return m_arrStripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+
+	public long getHits() {
+		return m_nHits.sum();
+	}
+
+	public long getMisses() {
+		return m_nMisses.sum();
+	}
+
+	public long getEvictions() {
+		return m_nEvictions.sum();
+	}
+
+	/**
+	 * @return the estimated memory of the cache in bytes
+	 */
+	public long getBytes() {
+		long bytes = 0;
+		for (Stripe stripe : m_arrStripes) {
+			synchronized (stripe) {
+				bytes += stripe.m_nBytes;
+			}
+		}
+		return bytes;
+	}
+
+	private static long bytes(String key, Entry entry) {
+		return BYTES_PER_SEQUENCE + 2L * key.length() + (long) BYTES_PER_ENTRY * entry.m_arrSymbols.length;
+	}
+
+	// A map in access order, which drops its least recently used sequences when it grows beyond its memory
+	private class Stripe extends LinkedHashMap<String, Entry> {
+		private static final long serialVersionUID = 1L;
+
+		private final long m_nMaxBytes;
+		private long m_nBytes = 0;
+
+		Stripe(long maxBytes) {
+			super(16, 0.75f, true);
+			m_nMaxBytes = maxBytes;
+		}
+
+		void add(String key, Entry entry) {
+			Entry old = put(key, entry);
+			if (old != null)
+				m_nBytes -= bytes(key, old);
+			m_nBytes += bytes(key, entry);
+
+			Iterator<Map.Entry<String, Entry>> it = entrySet().iterator();
+			while (m_nBytes > m_nMaxBytes && it.hasNext()) {
+				Map.Entry<String, Entry> eldest = it.next();
+				m_nBytes -= bytes(eldest.getKey(), eldest.getValue());
+				it.remove();
+				m_nEvictions.increment();
+			}
+		}
+	}
+}
@@ -0,0 +1,372 @@
+package decode;
+
+import grammar.Event;
+import grammar.TagModel;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CLASS: Tagger
+ *
+ * Definition: a trigram hidden Markov model tagger over the pre-terminals of a grammar
+ * Role: run over a sentence in linear time before its chart is filled, and keep for every word only the tags
+ *       which are likely in its context, so that the CKY algorithm starts from a sparser bottom row
+ * Responsibility: compute the posterior probability of every tag of every word by the forward-backward
+ *                 algorithm, restrict the cells of the words to the tags within the margin of the best one,
+ *                 and measure how often the tags of a gold standard are kept
+ *
+ * The transition probabilities interpolate the unigram, bigram and trigram frequencies of a TagModel. The
+ * word probabilities are the scores the Lexicon gives the tags of a word, the same ones the chart starts from,
+ * so the unknown word heuristics apply to the tagger as well. The states of a position are the pairs of a tag
+ * of the word and a tag of the word before it, and only the tags of the Lexicon are considered for a word.
+ * A tag of the Lexicon which is not in the model is never removed, and a sentence whose tags the model can
+ * not score at all is not restricted.
+ */
+public class Tagger {
+
+	private final CompiledGrammar m_grammar;
+
+	// The maximal distance (in -LogProb) of the posterior of a kept tag from the best tag of its word
+	private final double m_dMargin;
+
+	// The tags of the model are numbered 0 .. m_nTags - 1, and the boundary of the sentence is m_nTags
+	private final int m_nTags;
+	private final int[] m_arrTagOfSymbol;
+
+	// P(c | a, b) at (a * (m_nTags + 1) + b) * (m_nTags + 1) + c
+	private final double[] m_arrTransitions;
+
+	// The tags before the first word, -1 standing for the boundary
+	private static final int[] BOUNDARY_ONLY = {-1};
+
+	private final LongAdder m_nWords = new LongAdder();
+	private final LongAdder m_nKeptTags = new LongAdder();
+	private final LongAdder m_nLexiconTags = new LongAdder();
+
+	private final LongAdder m_nGoldWords = new LongAdder();
+	private final LongAdder m_nGoldInLexicon = new LongAdder();
+	private final LongAdder m_nGoldKept = new LongAdder();
+	private final LongAdder m_nBestCorrect = new LongAdder();
+
+	/**
+	 * @param model the trigram model of the pre-terminals
+	 * @param cg the compiled grammar, whose Lexicon tags the words
+	 * @param margin the maximal distance (in -LogProb) of the posterior of a kept tag from the best one
+	 */
+	Tagger(TagModel model, CompiledGrammar cg, double margin) {
+		m_grammar = cg;
+		m_dMargin = margin;
+
+		m_arrTagOfSymbol = new int[cg.getSymbolCount()];
+		Arrays.fill(m_arrTagOfSymbol, -1);
+		int tags = 0;
+		for (Event e : model.getUnigrams().keySet()) {
+			int symbol = cg.getSymbolNum(e.toString());
+			if (symbol != -1)
+				m_arrTagOfSymbol[symbol] = tags++;
+		}
+		m_nTags = tags;
+
+		// The counts by tag number, and the counts of the unigrams and bigrams as the history of a prediction
+		int size = m_nTags + 1;
+		double[] unigrams = new double[size];
+		double[] bigrams = new double[size * size];
+		double[] trigrams = new double[size * size * size];
+		double total = 0;
+		for (Map.Entry<Event, Integer> e : model.getUnigrams().entrySet()) {
+			int c = tag(e.getKey().getSymbols().get(0));
+			if (c != -1)
+				unigrams[c] += e.getValue();
+			total += e.getValue();
+		}
+		double[] unigramHistories = new double[size];
+		for (Map.Entry<Event, Integer> e : model.getBigrams().entrySet()) {
+			List<String> symbols = e.getKey().getSymbols();
+			int b = tag(symbols.get(0));
+			int c = tag(symbols.get(1));
+			if (b != -1 && c != -1) {
+				bigrams[b * size + c] += e.getValue();
+				unigramHistories[b] += e.getValue();
+			}
+		}
+		double[] bigramHistories = new double[size * size];
+		for (Map.Entry<Event, Integer> e : model.getTrigrams().entrySet()) {
+			List<String> symbols = e.getKey().getSymbols();
+			int a = tag(symbols.get(0));
+			int b = tag(symbols.get(1));
+			int c = tag(symbols.get(2));
+			if (a != -1 && b != -1 && c != -1) {
+				trigrams[(a * size + b) * size + c] += e.getValue();
+				bigramHistories[a * size + b] += e.getValue();
+			}
+		}
+
+		double[] lambdas = model.getLambdas();
+		m_arrTransitions = new double[size * size * size];
+		for (int a = 0; a < size; a++) {
+			for (int b = 0; b < size; b++) {
+				for (int c = 0; c < size; c++) {
+					int t = (a * size + b) * size + c;
+					m_arrTransitions[t] =
+							lambdas[0] * (total == 0 ? 0 : unigrams[c] / total) +
+							lambdas[1] * (unigramHistories[b] == 0 ? 0 : bigrams[b * size + c] / unigramHistories[b]) +
+							lambdas[2] * (bigramHistories[a * size + b] == 0 ? 0 : trigrams[t] / bigramHistories[a * size + b]);
+				}
+			}
+		}
+	}
+
+	// The number of a tag of the model, or of the boundary
+	private int tag(String symbol) {
+		if (symbol.equals(TagModel.BOUNDARY))
+			return m_nTags;
+		int num = m_grammar.getSymbolNum(symbol);
+		return num == -1 ? -1 : m_arrTagOfSymbol[num];
+	}
+
+	public double getMargin() {
+		return m_dMargin;
+	}
+
+	/**
+	 * Restrict the cells of the words of a sentence to their likely tags and the symbols above them
+	 * @param chart an empty chart of the sentence
+	 * @param input a non empty list of words which represent the sentence
+	 */
+	void restrict(Chart chart, List<String> input) {
+		Lexicon.TagVector[] words = lookup(input);
+		double[][] posteriors = posteriors(words);
+		if (posteriors == null)
+			return;
+
+		int kept = 0;
+		int lexicon = 0;
+		for (int w = 0; w < words.length; w++) {
+			long[] allowed = chart.newSymbolSet();
+			int[] tags = words[w].m_arrTags;
+			for (int t = 0; t < tags.length; t++) {
+				if (isKept(posteriors[w], t)) {
+					m_grammar.addWithClosure(allowed, tags[t]);
+					kept++;
+				}
+			}
+			lexicon += tags.length;
+			chart.intersectAllowed(chart.cell(w, w + 1), allowed);
+		}
+		m_nWords.add(words.length);
+		m_nKeptTags.add(kept);
+		m_nLexiconTags.add(lexicon);
+	}
+
+	/**
+	 * Tag a sentence of a gold standard, and count how often its gold tags are among the tags of the Lexicon,
+	 * among the tags kept, and the best tag
+	 * @param input the words of the sentence
+	 * @param goldTags the pre-terminals of the words in the gold standard
+	 */
+	public void evaluate(List<String> input, List<String> goldTags) {
+		if (input.isEmpty())
+			return;
+		Lexicon.TagVector[] words = lookup(input);
+		double[][] posteriors = posteriors(words);
+		for (int w = 0; w < words.length; w++) {
+			int gold = m_grammar.getSymbolNum(goldTags.get(w));
+			int[] tags = words[w].m_arrTags;
+			int best = -1;
+			for (int t = 0; t < tags.length; t++) {
+				if (posteriors != null && posteriors[w][t] >= 0 &&
+						(best == -1 || posteriors[w][t] > posteriors[w][best]))
+					best = t;
+				if (tags[t] != gold)
+					continue;
+				m_nGoldInLexicon.increment();
+				if (posteriors == null || isKept(posteriors[w], t))
+					m_nGoldKept.increment();
+			}
+			if (best != -1 && tags[best] == gold)
+				m_nBestCorrect.increment();
+		}
+		m_nGoldWords.add(words.length);
+	}
+
+	private Lexicon.TagVector[] lookup(List<String> input) {
+		Lexicon.TagVector[] words = new Lexicon.TagVector[input.size()];
+		for (int w = 0; w < words.length; w++)
+			words[w] = m_grammar.getLexicon().lookup(input.get(w));
+		return words;
+	}
+
+	// A tag is kept if the model does not know it, or if it is within the margin of the best tag of its word
+	private boolean isKept(double[] posteriors, int t) {
+		if (posteriors[t] < 0)
+			return true;
+		double best = 0;
+		for (double p : posteriors)
+			best = Math.max(best, p);
+		return posteriors[t] >= best * Math.exp(-m_dMargin);
+	}
+
+	/**
+	 * Compute the posterior probability of every tag of every word by the forward-backward algorithm
+	 * @param words the tags of the words of the sentence
+	 * @return for every word, the posterior of each of its tags in the order of the Lexicon, -1 for a tag
+	 *         which the model does not know. Null if the model gives the sentence no probability
+	 */
+	private double[][] posteriors(Lexicon.TagVector[] words) {
+		int n = words.length;
+		int size = m_nTags + 1;
+
+		// The tags of the model of every word, their positions in the Lexicon, and their word probabilities
+		// relative to the best one of the word
+		int[][] candidates = new int[n][];
+		int[][] positions = new int[n][];
+		double[][] emissions = new double[n][];
+		for (int w = 0; w < n; w++) {
+			int[] tags = words[w].m_arrTags;
+			double[] scores = words[w].m_arrScores;
+			int count = 0;
+			double min = Double.POSITIVE_INFINITY;
+			for (int t = 0; t < tags.length; t++) {
+				if (m_arrTagOfSymbol[tags[t]] != -1) {
+					count++;
+					min = Math.min(min, scores[t]);
+				}
+			}
+			if (count == 0)
+				return null;
+			candidates[w] = new int[count];
+			positions[w] = new int[count];
+			emissions[w] = new double[count];
+			count = 0;
+			for (int t = 0; t < tags.length; t++) {
+				if (m_arrTagOfSymbol[tags[t]] != -1) {
+					candidates[w][count] = m_arrTagOfSymbol[tags[t]];
+					positions[w][count] = t;
+					emissions[w][count] = Math.exp(min - scores[t]);
+					count++;
+				}
+			}
+		}
+
+		// alpha[w][p * |C(w)| + c]: the scaled probability of the words up to w, with the tag p before w and
+		// the tag c at w
+		double[][] alpha = new double[n][];
+		double[] scale = new double[n];
+		for (int w = 0; w < n; w++) {
+			int[] before = w > 0 ? candidates[w - 1] : BOUNDARY_ONLY;
+			int[] current = candidates[w];
+			alpha[w] = new double[before.length * current.length];
+			double sum = 0;
+			for (int p = 0; p < before.length; p++) {
+				int b = before[p] == -1 ? m_nTags : before[p];
+				for (int c = 0; c < current.length; c++) {
+					double prob = 0;
+					if (w == 0) {
+						prob = m_arrTransitions[(m_nTags * size + b) * size + current[c]];
+					} else {
+						int[] twoBefore = w > 1 ? candidates[w - 2] : BOUNDARY_ONLY;
+						for (int z = 0; z < twoBefore.length; z++) {
+							int a = twoBefore[z] == -1 ? m_nTags : twoBefore[z];
+							prob += alpha[w - 1][z * before.length + p] * m_arrTransitions[(a * size + b) * size + current[c]];
+						}
+					}
+					prob *= emissions[w][c];
+					alpha[w][p * current.length + c] = prob;
+					sum += prob;
+				}
+			}
+			if (!(sum > 0))
+				return null;
+			scale[w] = sum;
+			for (int s = 0; s < alpha[w].length; s++)
+				alpha[w][s] /= sum;
+		}
+
+		// beta[w][p * |C(w)| + c]: the scaled probability of the words after w given the tags p and c
+		double[][] posteriors = new double[n][];
+		double[] beta = null;
+		for (int w = n - 1; w >= 0; w--) {
+			int[] before = w > 0 ? candidates[w - 1] : BOUNDARY_ONLY;
+			int[] current = candidates[w];
+			double[] next = new double[before.length * current.length];
+			for (int p = 0; p < before.length; p++) {
+				int a = before[p] == -1 ? m_nTags : before[p];
+				for (int c = 0; c < current.length; c++) {
+					int b = current[c];
+					double prob = 0;
+					if (w == n - 1) {
+						prob = m_arrTransitions[(a * size + b) * size + m_nTags];
+					} else {
+						int[] after = candidates[w + 1];
+						for (int d = 0; d < after.length; d++)
+							prob += m_arrTransitions[(a * size + b) * size + after[d]] * emissions[w + 1][d] *
+									beta[c * after.length + d];
+						prob /= scale[w + 1];
+					}
+					next[p * current.length + c] = prob;
+				}
+			}
+			beta = next;
+
+			posteriors[w] = new double[words[w].m_arrTags.length];
+			Arrays.fill(posteriors[w], -1);
+			double sum = 0;
+			for (int c = 0; c < current.length; c++) {
+				double prob = 0;
+				for (int p = 0; p < before.length; p++)
+					prob += alpha[w][p * current.length + c] * beta[p * current.length + c];
+				posteriors[w][positions[w][c]] = prob;
+				sum += prob;
+			}
+			if (!(sum > 0))
+				return null;
+			for (int c = 0; c < current.length; c++)
+				posteriors[w][positions[w][c]] /= sum;
+		}
+		return posteriors;
+	}
+
+	/**
+	 * @return the average number of tags kept for a word of the decoded sentences
+	 */
+	public double getKeptTagsPerWord() {
+		long words = m_nWords.sum();
+		return words == 0 ? 0.0 : m_nKeptTags.sum() / (double) words;
+	}
+
+	/**
+	 * @return the average number of tags the Lexicon gives a word of the decoded sentences
+	 */
+	public double getLexiconTagsPerWord() {
+		long words = m_nWords.sum();
+		return words == 0 ? 0.0 : m_nLexiconTags.sum() / (double) words;
+	}
+
+	/**
+	 * @return the fraction of the evaluated words whose gold tag is among the tags of the Lexicon, the best
+	 *         the exhaustive search can do
+	 */
+	public double getLexiconAccuracy() {
+		long words = m_nGoldWords.sum();
+		return words == 0 ? 0.0 : m_nGoldInLexicon.sum() / (double) words;
+	}
+
+	/**
+	 * @return the fraction of the evaluated words whose gold tag is kept
+	 */
+	public double getPrunedAccuracy() {
+		long words = m_nGoldWords.sum();
+		return words == 0 ? 0.0 : m_nGoldKept.sum() / (double) words;
+	}
+
+	/**
+	 * @return the fraction of the evaluated words whose gold tag is the most likely one
+	 */
+	public double getBestTagAccuracy() {
+		long words = m_nGoldWords.sum();
+		return words == 0 ? 0.0 : m_nBestCorrect.sum() / (double) words;
+	}
+}
@@ -0,0 +1,142 @@
+package decode;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CLASS: WordCache
+ *
+ * Definition: a bounded cache from a word to the entries of its chart cell
+ * Role: let the decoder fill the cell of a frequent word by copying, instead of tagging the word
+ *       and applying the unary closure over its tags again for every sentence
+ * Responsibility: be shared by all the decoding threads, evict the least recently used words
+ *                 once it is full, and count its hits and misses
+ *
+ * The words are spread over STRIPES independent LRU maps by their hash, each with its own lock,
+ * so threads looking up different words rarely wait for each other.
+ */
+public class WordCache {
+
+	private static final int STRIPES = 16;
+
+	// The entries of the cell of a word, in the order they were added to it
+	static final class Entry {
+		final int[] m_arrSymbols;
+		final double[] m_arrScores;
+		final int[] m_arrRules;
+		final int[] m_arrSplits;
+
+		/**
+		 * Copy the entries of a filled cell
+		 */
+		Entry(Chart chart, int cell) {
+			int count = chart.getActiveCount(cell);
+			int[] active = chart.getActive(cell);
+			m_arrSymbols = new int[count];
+			m_arrScores = new double[count];
+			m_arrRules = new int[count];
+			m_arrSplits = new int[count];
+			for (int a = 0; a < count; a++) {
+				int symbol = active[a];
+				m_arrSymbols[a] = symbol;
+				m_arrScores[a] = chart.getScore(cell, symbol);
+				m_arrRules[a] = chart.getRule(cell, symbol);
+				m_arrSplits[a] = chart.getSplit(cell, symbol);
+			}
+		}
+
+		/**
+		 * Add the entries to an empty cell
+		 */
+		void apply(Chart chart, int cell) {
+			for (int a = 0; a < m_arrSymbols.length; a++)
+				chart.add(cell, m_arrSymbols[a], m_arrScores[a], m_arrRules[a], m_arrSplits[a]);
+		}
+	}
+
+	private final Stripe[] m_arrStripes = new Stripe[STRIPES];
+
+	private final LongAdder m_nHits = new LongAdder();
+	private final LongAdder m_nMisses = new LongAdder();
+	private final LongAdder m_nEvictions = new LongAdder();
+
+	/**
+	 * @param maxWords the maximal number of words kept by the cache
+	 */
+	public WordCache(int maxWords) {
+		int stripeSize = Math.max(1, (maxWords + STRIPES - 1) / STRIPES);
+		for (int s = 0; s < STRIPES; s++)
+			m_arrStripes[s] = new Stripe(stripeSize);
+	}
+
+	/**
+	 * @param word a word
+	 * @return the entries of the cell of the word, or null if the word is not in the cache
+	 */
+	Entry get(String word) {
+		Stripe stripe = stripe(word);
+		Entry entry;
+		synchronized (stripe) {
+			entry = stripe.get(word);
+		}
+		if (entry == null)
+			m_nMisses.increment();
+		else
+			m_nHits.increment();
+		return entry;
+	}
+
+	void put(String word, Entry entry) {
+		Stripe stripe = stripe(word);
+		synchronized (stripe) {
+			stripe.put(word, entry);
+		}
+	}
+
+	private Stripe stripe(String word) {
+		int h = word.hashCode();
+		return m_arrStripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+
+	public long getHits() {
+		return m_nHits.sum();
+	}
+
+	public long getMisses() {
+		return m_nMisses.sum();
+	}
+
+	public long getEvictions() {
+		return m_nEvictions.sum();
+	}
+
+	/**
+	 * @return the fraction of the lookups which found their word
+	 */
+	public double getHitRatio() {
+		long hits = getHits();
+		long lookups = hits + getMisses();
+		return lookups == 0 ? 0.0 : hits / (double) lookups;
+	}
+
+	// A map in access order, which drops its least recently used word when it grows beyond its size
+	private class Stripe extends LinkedHashMap<String, Entry> {
+		private static final long serialVersionUID = 1L;
+
+		private final int m_nMaxSize;
+
+		Stripe(int maxSize) {
+			super(16, 0.75f, true);
+			m_nMaxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			if (size() <= m_nMaxSize)
+				return false;
+			m_nEvictions.increment();
+			return true;
+		}
+	}
+}
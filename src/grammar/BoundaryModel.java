@@ -0,0 +1,159 @@
+package grammar;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * CLASS: BoundaryModel
+ *
+ * Definition: two linear classifiers over the words of a sentence, which tell whether a word may begin and
+ *             whether it may end a constituent of more than one word
+ * Role: holds the features and weights of the chart constraints, which close the cells of the chart that
+ *       can not be constituents before any rule is tried
+ * Responsibility: extract the features of a word in its sentence, and score them
+ *
+ * The features of a word are its form, its ambiguity class (the set of its pre-terminals in the Grammar, or
+ * UNKNOWN), its first letter and last two letters, the forms and classes of its neighbours, and whether it is
+ * first or last in the sentence. They are hashed into a table of weights rather than named, so that scoring a
+ * word builds no strings and looks nothing up but the classes of the words. The weights are set by
+ * Train.trainBoundaries.
+ */
+public class BoundaryModel {
+
+	public static final int BEGIN = 0;
+	public static final int END = 1;
+
+	private static final String UNKNOWN_CLASS = "UNKNOWN";
+
+	// The features are hashed into 2^HASH_BITS entries, each holding the weights of BEGIN and END
+	private static final int HASH_BITS = 18;
+	private static final int HASH_MASK = (1 << HASH_BITS) - 1;
+
+	// The feature templates
+	private static final int BIAS = 0;
+	private static final int WORD = 1;
+	private static final int CLASS = 2;
+	private static final int FIRST_LETTER = 3;
+	private static final int SUFFIX = 4;
+	private static final int PREVIOUS_WORD = 5;
+	private static final int NEXT_WORD = 6;
+	private static final int PREVIOUS_CLASS = 7;
+	private static final int NEXT_CLASS = 8;
+	private static final int PREVIOUS_CLASS_PAIR = 9;
+	private static final int NEXT_CLASS_PAIR = 10;
+	private static final int CLASS_TRIPLE = 11;
+	private static final int SECOND_PREVIOUS_CLASS = 12;
+	private static final int SECOND_NEXT_CLASS = 13;
+	private static final int INITIAL = 14;
+	private static final int FINAL = 15;
+	private static final int TEMPLATES = 16;
+
+	// The hash of the words and classes beyond the ends of the sentence
+	private static final int BEFORE_SENTENCE = "<S>".hashCode();
+	private static final int AFTER_SENTENCE = "</S>".hashCode();
+
+	// The weights by feature entry and label, at 2 * entry + label
+	protected double[] m_arrWeights = new double[2 << HASH_BITS];
+
+	// The ambiguity class of every word of the Grammar
+	protected Map<String, String> m_mapClasses = new HashMap<String, String>();
+
+	public BoundaryModel(Grammar g) {
+		super();
+		for (Map.Entry<String, Set<Rule>> e : g.getLexicalEntries().entrySet()) {
+			Set<String> tags = new TreeSet<String>();
+			for (Rule r : e.getValue())
+				tags.add(r.getLHS().toString());
+			m_mapClasses.put(e.getKey(), String.join("|", tags));
+		}
+	}
+
+	public double[] getWeights() {
+		return m_arrWeights;
+	}
+
+	/**
+	 * Get the features of the words of a sentence
+	 * @param words the words of the sentence
+	 * @return for every word, the entries of its features in the table of weights
+	 */
+	public int[][] features(List<String> words)
+	{
+		int n = words.size();
+		int[] wordHashes = new int[n + 4];
+		int[] classHashes = new int[n + 4];
+		for (int w = -2; w < n + 2; w++) {
+			if (w < 0 || w >= n) {
+				wordHashes[w + 2] = w < 0 ? BEFORE_SENTENCE : AFTER_SENTENCE;
+				classHashes[w + 2] = wordHashes[w + 2];
+			} else {
+				String wordClass = m_mapClasses.get(words.get(w));
+				wordHashes[w + 2] = words.get(w).hashCode();
+				classHashes[w + 2] = (wordClass == null ? UNKNOWN_CLASS : wordClass).hashCode();
+			}
+		}
+
+		int[][] features = new int[n][];
+		for (int w = 0; w < n; w++) {
+			String word = words.get(w);
+			int c = w + 2;
+			int[] f = new int[TEMPLATES];
+			f[BIAS] = entry(BIAS, 0, 0, 0);
+			f[WORD] = entry(WORD, wordHashes[c], 0, 0);
+			f[CLASS] = entry(CLASS, classHashes[c], 0, 0);
+			f[FIRST_LETTER] = entry(FIRST_LETTER, word.charAt(0), 0, 0);
+			f[SUFFIX] = entry(SUFFIX, word.length() > 1 ? word.charAt(word.length() - 2) : 0, word.charAt(word.length() - 1), 0);
+			f[PREVIOUS_WORD] = entry(PREVIOUS_WORD, wordHashes[c - 1], 0, 0);
+			f[NEXT_WORD] = entry(NEXT_WORD, wordHashes[c + 1], 0, 0);
+			f[PREVIOUS_CLASS] = entry(PREVIOUS_CLASS, classHashes[c - 1], 0, 0);
+			f[NEXT_CLASS] = entry(NEXT_CLASS, classHashes[c + 1], 0, 0);
+			f[PREVIOUS_CLASS_PAIR] = entry(PREVIOUS_CLASS_PAIR, classHashes[c - 1], classHashes[c], 0);
+			f[NEXT_CLASS_PAIR] = entry(NEXT_CLASS_PAIR, classHashes[c], classHashes[c + 1], 0);
+			f[CLASS_TRIPLE] = entry(CLASS_TRIPLE, classHashes[c - 1], classHashes[c], classHashes[c + 1]);
+			f[SECOND_PREVIOUS_CLASS] = entry(SECOND_PREVIOUS_CLASS, classHashes[c - 2], 0, 0);
+			f[SECOND_NEXT_CLASS] = entry(SECOND_NEXT_CLASS, classHashes[c + 2], 0, 0);
+			f[INITIAL] = entry(INITIAL, w == 0 ? 1 : 0, 0, 0);
+			f[FINAL] = entry(FINAL, w + 1 == n ? 1 : 0, 0, 0);
+			features[w] = f;
+		}
+		return features;
+	}
+
+	// The entry of a feature in the table of weights, hashed from its template and values
+	private static int entry(int template, int first, int second, int third)
+	{
+		int h = template * 0x9E3779B1;
+		h = (h ^ first) * 0x85EBCA6B;
+		h = (h ^ second) * 0xC2B2AE35;
+		h = (h ^ third) * 0x9E3779B1;
+		return (h ^ (h >>> 16)) & HASH_MASK;
+	}
+
+	/**
+	 * @param features the features of a word
+	 * @param label BEGIN or END
+	 * @return the score of the classifier, positive if the word may begin (or end) a constituent
+	 */
+	public double score(int[] features, int label)
+	{
+		double score = 0;
+		for (int f : features)
+			score += m_arrWeights[2 * f + label];
+		return score;
+	}
+
+	/**
+	 * Add to the weights of the features of a word
+	 * @param features the features of the word
+	 * @param label BEGIN or END
+	 * @param delta the amount added to every weight
+	 */
+	public void update(int[] features, int label, double delta)
+	{
+		for (int f : features)
+			m_arrWeights[2 * f + label] += delta;
+	}
+}
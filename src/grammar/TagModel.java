@@ -0,0 +1,71 @@
+package grammar;
+
+import java.util.List;
+
+import utils.CountMap;
+
+/**
+ * CLASS: TagModel
+ *
+ * Definition: a trigram model of the sequences of pre-terminals of a treebank
+ * Role: holds the statistics of a hidden Markov model tagger, whose word probabilities are those of the
+ *       lexical rules of the Grammar
+ * Responsibility: count the unigrams, bigrams and trigrams of pre-terminals, and hold the weights with which
+ *                 their relative frequencies are interpolated
+ *
+ * Every sequence is padded with two BOUNDARY symbols before its first pre-terminal and one after its last,
+ * so that the n-grams counted are those of every predicted symbol with the two symbols before it.
+ */
+public class TagModel {
+
+	public static final String BOUNDARY = "<S>";
+
+	protected CountMap<Event> m_cmUnigrams = new CountMap<Event>();
+	protected CountMap<Event> m_cmBigrams = new CountMap<Event>();
+	protected CountMap<Event> m_cmTrigrams = new CountMap<Event>();
+
+	// The weights of the unigram, bigram and trigram frequencies, which sum to 1
+	protected double[] m_arrLambdas = {1.0 / 3, 1.0 / 3, 1.0 / 3};
+
+	public TagModel() {
+		super();
+	}
+
+	/**
+	 * Count the n-grams of the pre-terminals of a sentence
+	 * @param tags the pre-terminals of the sentence, in order
+	 */
+	public void addSequence(List<String> tags)
+	{
+		String first = BOUNDARY;
+		String second = BOUNDARY;
+		for (int i = 0; i <= tags.size(); i++) {
+			String third = i < tags.size() ? tags.get(i) : BOUNDARY;
+			getUnigrams().increment(new Event(third));
+			getBigrams().increment(new Event(second + " " + third));
+			getTrigrams().increment(new Event(first + " " + second + " " + third));
+			first = second;
+			second = third;
+		}
+	}
+
+	public CountMap<Event> getUnigrams() {
+		return m_cmUnigrams;
+	}
+
+	public CountMap<Event> getBigrams() {
+		return m_cmBigrams;
+	}
+
+	public CountMap<Event> getTrigrams() {
+		return m_cmTrigrams;
+	}
+
+	public double[] getLambdas() {
+		return m_arrLambdas;
+	}
+
+	public void setLambdas(double unigram, double bigram, double trigram) {
+		m_arrLambdas = new double[] {unigram, bigram, trigram};
+	}
+}
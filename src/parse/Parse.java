@@ -3,6 +3,7 @@ package parse;
 import grammar.Grammar;
 import grammar.Rule;
 
+import java.io.File;
 import java.util.*;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -11,6 +12,7 @@ import java.util.concurrent.TimeUnit;
 import bracketimport.TreebankReader;
 
 import decode.Decode;
+import train.GrammarOptimizer;
 import train.Train;
 
 import tree.Node;
@@ -21,33 +23,6 @@ import utils.LineWriter;
 
 public class Parse {
 
-	/**
-	 * A reccursive function used to eliminate the binarization added earlier for the CKY algorithm
-	 * @param node a node of a binarized tree
-	 * @return a node after the de-binarization
-	 */
-	public static Node deTransformTree(Node node){
-		if(node.isLeaf())
-			return new Node(node.getLabel());
-
-		Node newNode = new Node(node.getLabel());
-		for(Node daughter: node.getDaughters()){
-			Node newDaughter = deTransformTree(daughter);
-
-			if(daughter.isLeaf() || !daughter.getLabel().contains(Train.MARKOVIZATION_SYMBOL)){
-				newNode.addDaughter(newDaughter);
-			} else {
-				// If the daughter is a binarized node, then de-binarize the current node taking its
-				// grand daughters instead of this daughter
-				for(Node daughter2: newDaughter.getDaughters()){
-					newNode.addDaughter(daughter2);
-				}
-			}
-
-		}
-		return newNode;
-	}
-
 	static Map<Character, String> hebrewLetters = new HashMap<Character, String>();
 
 	public static void printWord(String word){
@@ -109,22 +84,152 @@ public class Parse {
 		// but this can be set by a program argument as well
 		int nThreads = Runtime.getRuntime().availableProcessors() / 2;
 
+		// Pruning of the chart cells, exhaustive by default
+		int beamSize = 0;
+		double beamThreshold = Double.POSITIVE_INFINITY;
+
+		// Threshold of the coarse-to-fine pass, disabled by default
+		double coarseToFineThreshold = -1;
+
+		// A* search in place of the CKY algorithm
+		boolean aStar = false;
+
+		// Margin (in -LogProb) of the tags kept by the tagging pass from the best tag of a word, disabled by default
+		double taggerMargin = -1;
+
+		// Margin (below 0) of the scores of the words which may begin or end a constituent, chart constraints
+		// are disabled by default
+		double chartConstraintMargin = -1;
+
+		// The boolean recognizer pre-pass, which restricts every chart to the items of some parse
+		boolean recognize = false;
+
+		// The least count and probability of the syntactic rules kept in the grammar, no pruning by default
+		int pruneCount = 0;
+		double pruneProbability = 0;
+
+		// The restriction of every chart by the static analysis of the grammar, disabled by default
+		boolean grammarFilter = false;
+
+		// Minimal length of the sentences whose chart is filled in parallel, disabled by default
+		int wavefrontLength = -1;
+		boolean splitCells = false;
+
+		// Maximal number of words in the cache of word cells, the default of the decoder if negative
+		int wordCacheSize = -1;
+
+		// Maximal number of words of the sequences in the cache of cells, disabled by default, and its memory
+		int spanCacheLength = 0;
+		long spanCacheMegabytes = 256;
+
+		// File of the parses of earlier runs and maximal number of sentences kept by the sentence cache
+		String sentenceCacheFile = null;
+		int sentenceCacheSize = 100000;
+
+		// The kernel of the binary step of the CKY algorithm, "scalar" or "blocked"
+		String kernel = "scalar";
+
+		// Time (in milliseconds) and work (in chart cells) the decoder may spend on a sentence, no limit by default
+		long timeLimit = 0;
+		long workLimit = 0;
+
 		if (args.length < 3)
 		{
 			System.out.println("Usage: Parse <goldset> <trainset> <experiment-identifier-string> " +
-					"[horizontal Markovization factor] [number-of-threads to run]");
+					"[horizontal Markovization factor] [number-of-threads to run] " +
+					"[-beam <max symbols per cell>] [-threshold <max -LogProb distance from the best symbol of a cell>] " +
+					"[-c2f <max -LogProb distance of a coarse item from the best coarse parse>] [-astar] " +
+					"[-tagger <max -LogProb distance of a kept tag from the best tag of a word>] " +
+					"[-chart-constraints <margin below 0 of the classifier scores of open words>] [-recognize] [-grammar-filter] " +
+					"[-prune-count <min count of a kept rule>] [-prune-probability <min probability of a kept rule>] " +
+					"[-wavefront <min sentence length for parallel chart filling>] [-split-cells] " +
+					"[-word-cache <max cached words, 0 to disable>] " +
+					"[-sentence-cache <file of cached parses>] [-sentence-cache-size <max cached sentences>] " +
+					"[-span-cache <max words of a cached span>] [-span-cache-mb <max MB of the span cache>] " +
+					"[-time-limit <max ms per sentence>] [-work-limit <max chart cells per sentence>] " +
+					"[-kernel <scalar|blocked>]");
 			return;
 		}
 
-		if (args.length >= 4) {
-			h = Integer.parseInt(args[3]);
-			if (args.length >= 5)
-				nThreads = Integer.parseInt(args[4]);
+		int nPositional = 0;
+		for (int i = 3; i < args.length; i++) {
+			if (args[i].equals("-beam")) {
+				beamSize = Integer.parseInt(args[i+1]);
+				i++;
+			} else if (args[i].equals("-threshold")) {
+				beamThreshold = Double.parseDouble(args[i+1]);
+				i++;
+			} else if (args[i].equals("-c2f")) {
+				coarseToFineThreshold = Double.parseDouble(args[i+1]);
+				i++;
+			} else if (args[i].equals("-astar")) {
+				aStar = true;
+			} else if (args[i].equals("-chart-constraints")) {
+				chartConstraintMargin = Double.parseDouble(args[i+1]);
+				i++;
+			} else if (args[i].equals("-prune-count")) {
+				pruneCount = Integer.parseInt(args[i+1]);
+				i++;
+			} else if (args[i].equals("-prune-probability")) {
+				pruneProbability = Double.parseDouble(args[i+1]);
+				i++;
+			} else if (args[i].equals("-grammar-filter")) {
+				grammarFilter = true;
+			} else if (args[i].equals("-recognize")) {
+				recognize = true;
+			} else if (args[i].equals("-tagger")) {
+				taggerMargin = Double.parseDouble(args[i+1]);
+				i++;
+			} else if (args[i].equals("-wavefront")) {
+				wavefrontLength = Integer.parseInt(args[i+1]);
+				i++;
+			} else if (args[i].equals("-split-cells")) {
+				splitCells = true;
+			} else if (args[i].equals("-word-cache")) {
+				wordCacheSize = Integer.parseInt(args[i+1]);
+				i++;
+			} else if (args[i].equals("-span-cache")) {
+				spanCacheLength = Integer.parseInt(args[i+1]);
+				i++;
+			} else if (args[i].equals("-span-cache-mb")) {
+				spanCacheMegabytes = Long.parseLong(args[i+1]);
+				i++;
+			} else if (args[i].equals("-sentence-cache")) {
+				sentenceCacheFile = args[i+1];
+				i++;
+			} else if (args[i].equals("-sentence-cache-size")) {
+				sentenceCacheSize = Integer.parseInt(args[i+1]);
+				i++;
+			} else if (args[i].equals("-kernel")) {
+				kernel = args[i+1];
+				i++;
+			} else if (args[i].equals("-time-limit")) {
+				timeLimit = Long.parseLong(args[i+1]);
+				i++;
+			} else if (args[i].equals("-work-limit")) {
+				workLimit = Long.parseLong(args[i+1]);
+				i++;
+			} else if (nPositional == 0) {
+				h = Integer.parseInt(args[i]);
+				nPositional++;
+			} else {
+				nThreads = Integer.parseInt(args[i]);
+				nPositional++;
+			}
+		}
+
+		if (grammarFilter && spanCacheLength > 1) {
+			System.out.println("The span cache can not be used with the grammar filter, which restricts a span by its " +
+					"position in the sentence");
+			return;
 		}
 
 		System.out.println("The parser implements Markovization of order " + h);
 		System.out.println("This machine has " + Runtime.getRuntime().availableProcessors() + " CPUs");
 		System.out.println("The application runs with a thread pool of size " + nThreads);
+		if (beamSize > 0 || beamThreshold != Double.POSITIVE_INFINITY)
+			System.out.println("The chart cells are pruned to a beam of size " + beamSize +
+					" and a threshold of " + beamThreshold);
 
 		// 1. read input
 		Treebank myGoldTreebank = TreebankReader.getInstance().read(true, args[0]);
@@ -136,16 +241,114 @@ public class Parse {
 		// 3. train
 		Grammar myGrammar = Train.getInstance().train(myTrainTreebank, h);
 
+		// 3.1. remove the useless rules, and the rare ones
+		GrammarOptimizer optimizer = new GrammarOptimizer(pruneCount, pruneProbability, Decode.START_VARIABLE);
+		optimizer.optimize(myGrammar);
+		System.out.println("The grammar has " + optimizer.getRulesAfter() + " of " + optimizer.getRulesBefore() +
+				" syntactic rules and " + optimizer.getSymbolsAfter() + " of " + optimizer.getSymbolsBefore() +
+				" symbols, after removing " + optimizer.getUselessRules() + " useless rules and pruning " +
+				optimizer.getPrunedRules() + " rare rules");
+
 		// 4. decode
 		ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(nThreads);
 
-		Decode decodeInstance = Decode.getInstance(myGrammar);
+		Decode decodeInstance = new Decode(myGrammar);
+		decodeInstance.setBeam(beamSize, beamThreshold);
+		if (wordCacheSize >= 0)
+			decodeInstance.setWordCache(wordCacheSize);
+		if (spanCacheLength > 1)
+			decodeInstance.setSpanCache(spanCacheLength, spanCacheMegabytes * 1024 * 1024);
+		if (coarseToFineThreshold >= 0) {
+			decodeInstance.setCoarseToFine(coarseToFineThreshold);
+			System.out.println("Coarse-to-fine decoding with a threshold of " + coarseToFineThreshold + ", the coarse grammar has " +
+					decodeInstance.getCoarseToFine().getCoarseGrammar().getSymbolCount() + " symbols");
+		}
+
+		if (taggerMargin >= 0) {
+			decodeInstance.setTagger(Train.getInstance().trainTagger(myTrainTreebank), taggerMargin);
+			System.out.println("A tagging pass keeps the tags within " + taggerMargin + " of the best tag of every word");
+		}
+
+		if (chartConstraintMargin >= 0) {
+			decodeInstance.setChartConstraints(Train.getInstance().trainBoundaries(myTrainTreebank, myGrammar, 5),
+					chartConstraintMargin);
+			System.out.println("Chart constraints close the cells of the words not classified within " +
+					chartConstraintMargin + " of beginning or ending a constituent");
+		}
+
+		decodeInstance.setGrammarFilter(grammarFilter);
+		if (grammarFilter)
+			System.out.println("The static analysis of the grammar bounds the yield of " +
+					decodeInstance.getGrammarAnalysis().getBoundedSymbols() + " of " +
+					decodeInstance.getCompiledGrammar().getSymbolCount() + " symbols");
+
+		if (recognize) {
+			decodeInstance.setRecognizer();
+			System.out.println("A boolean recognizer restricts every chart to the items of some parse");
+		}
+
+		if (aStar) {
+			decodeInstance.setAStar();
+			System.out.println("A* decoding, the chart cells are not pruned");
+		}
+
+		if (wavefrontLength >= 0) {
+			decodeInstance.setWavefront(wavefrontLength, Runtime.getRuntime().availableProcessors(), splitCells);
+			System.out.println("The charts of sentences of at least " + wavefrontLength + " words are filled in parallel" +
+					(splitCells ? ", splitting the top cells by parent symbol" : ""));
+		}
+
+		decodeInstance.setBlockedKernel(kernel.equals("blocked"));
+		System.out.println("The binary rules are applied by the " + kernel + " kernel");
+
+		if (timeLimit > 0 || workLimit > 0) {
+			decodeInstance.setBudget(timeLimit, workLimit);
+			System.out.println("The decoding of a sentence is limited to " +
+					(timeLimit > 0 ? timeLimit + " ms" : "unlimited time") + " and " +
+					(workLimit > 0 ? workLimit + " chart cells" : "unlimited work"));
+		}
+
+		// Parses are only reused by a parser with the same grammar and the same search
+		String configuration = "h=" + h + " train=" + new File(args[1]).getAbsolutePath() +
+				" rules=" + myGrammar.getNumberOfSyntacticRuleTypes() + " lexical=" + myGrammar.getNumberOfLexicalRuleTypes() +
+				" beam=" + beamSize + " threshold=" + beamThreshold + " c2f=" + coarseToFineThreshold +
+				" prune=" + pruneCount + "/" + pruneProbability + " astar=" + aStar + " tagger=" + taggerMargin + " constraints=" + chartConstraintMargin +
+				" recognize=" + recognize + " split=" + splitCells + " filter=" + grammarFilter + " time=" + timeLimit + " work=" + workLimit;
+		SentenceCache sentenceCache = new SentenceCache(sentenceCacheSize);
+		if (sentenceCacheFile != null)
+			System.out.println("Read " + sentenceCache.load(sentenceCacheFile, configuration) +
+					" parses from the sentence cache");
 
 		Long startTime = System.currentTimeMillis();
-		Task[] tasks = new Task[myGoldTreebank.size()];
+
+		// Every distinct sentence which is not in the cache is decoded once, by the task of its first occurrence
+		String[] parses = new String[myGoldTreebank.size()];
+		Task[] occurrenceTasks = new Task[myGoldTreebank.size()];
+		boolean[] repeated = new boolean[myGoldTreebank.size()];
+		Map<List<String>, Task> distinctSentences = new HashMap<List<String>, Task>();
+		List<Task> taskList = new ArrayList<Task>();
+		int duplicates = 0;
 		for (int i = 0; i < myGoldTreebank.size(); i++) {
 			List<String> mySentence = myGoldTreebank.getAnalyses().get(i).getYield();
-			tasks[i] = new Task(mySentence, decodeInstance);
+			parses[i] = sentenceCache.get(mySentence);
+			if (parses[i] != null)
+				continue;
+			occurrenceTasks[i] = distinctSentences.get(mySentence);
+			if (occurrenceTasks[i] != null) {
+				repeated[i] = true;
+				duplicates++;
+				continue;
+			}
+			occurrenceTasks[i] = new Task(mySentence, decodeInstance);
+			distinctSentences.put(mySentence, occurrenceTasks[i]);
+			taskList.add(occurrenceTasks[i]);
+		}
+		Task[] tasks = taskList.toArray(new Task[taskList.size()]);
+
+		// The most expensive sentences are dispatched first, the results are still kept in file order
+		Integer[] order = Scheduler.longestFirst(tasks, myGrammar.getNumberOfSyntacticRuleTypes());
+		long decodeStart = System.nanoTime();
+		for (int i : order) {
 			executor.execute(tasks[i]);
 		}
 		try {
@@ -154,17 +357,103 @@ public class Parse {
 		} catch (InterruptedException e){
 			System.out.println(e.getStackTrace());
 		}
+		long decodeTime = System.nanoTime() - decodeStart;
 		System.out.println("The process took " + (System.currentTimeMillis() - startTime) / 1000 + " seconds");
+		System.out.println("Decoded " + tasks.length + " sentences in " + decodeTime / 1000000 + " ms, " +
+				(decodeTime == 0 ? 0 : tasks.length * 1000000000L / decodeTime) + " sentences per second");
 
-		// 5. de-transform trees
-		List<Tree> myDeTransformedTrees = new ArrayList<Tree>();
-		for(Task t: tasks){
-			Tree t2 = new Tree(deTransformTree(t.getTree().getRoot()));
-			myDeTransformedTrees.add(t2);
+		// Compare the schedule with the file order one, by replaying the measured durations of the tasks
+		long[] durations = new long[tasks.length];
+		long busy = 0;
+		for (int i = 0; i < tasks.length; i++) {
+			durations[i] = tasks[i].getDuration();
+			busy += durations[i];
 		}
+		long longestFirstSpan = Scheduler.makespan(durations, order, nThreads);
+		long fileOrderSpan = Scheduler.makespan(durations, Scheduler.fileOrder(tasks.length), nThreads);
+		System.out.println("Longest-first scheduling: " + longestFirstSpan / 1000000 + " ms with " +
+				(longestFirstSpan * nThreads - busy) / 1000000 + " ms of idle thread time, file order: " +
+				fileOrderSpan / 1000000 + " ms with " + (fileOrderSpan * nThreads - busy) / 1000000 +
+				" ms of idle thread time, saved " + (fileOrderSpan - longestFirstSpan) * nThreads / 1000000 + " ms");
+		if (decodeInstance.getBeamRetries() > 0)
+			System.out.println("The beam was widened " + decodeInstance.getBeamRetries() + " times");
+		if (decodeInstance.getCoarseToFine() != null)
+			System.out.println("The coarse pass kept " + decodeInstance.getCoarseToFine().getKeptRatio() * 100 +
+					"% of the coarse items, the restricted fine pass found no parse " +
+					decodeInstance.getCoarseToFineRetries() + " times");
+		if (decodeInstance.getWordCache() != null)
+			System.out.println("The word cache found " + decodeInstance.getWordCache().getHitRatio() * 100 +
+					"% of the words, " + decodeInstance.getWordCache().getEvictions() + " words were evicted");
+		if (decodeInstance.getSpanCache() != null)
+			System.out.println("The span cache found " + decodeInstance.getSpanCache().getHits() + " of " +
+					(decodeInstance.getSpanCache().getHits() + decodeInstance.getSpanCache().getMisses()) +
+					" spans, it holds about " + decodeInstance.getSpanCache().getBytes() / 1024 + " KB after " +
+					decodeInstance.getSpanCache().getEvictions() + " evictions");
+		if (decodeInstance.getWavefrontCharts() > 0)
+			System.out.println(decodeInstance.getWavefrontCharts() + " charts were filled in parallel");
+		if (decodeInstance.getBudgetExceeded() > 0)
+			System.out.println(decodeInstance.getBudgetExceeded() + " sentences ran out of their budget: " +
+					decodeInstance.getFallbackParses() + " were completed with a narrow beam and " +
+					decodeInstance.getFragmentParses() + " were put together from partial parses");
+		if (decodeInstance.getTagger() != null) {
+			// The tags kept for the gold sentences, against all the tags of the Lexicon as in the exhaustive search
+			for (Tree goldTree : myGoldTreebank.getAnalyses()) {
+				List<String> goldTags = new ArrayList<String>();
+				for (Node n : goldTree.getNodes())
+					if (n.isPreTerminal())
+						goldTags.add(n.getIdentifier());
+				decodeInstance.getTagger().evaluate(goldTree.getYield(), goldTags);
+			}
+			System.out.println("The tagging pass kept " + decodeInstance.getTagger().getKeptTagsPerWord() + " of " +
+					decodeInstance.getTagger().getLexiconTagsPerWord() + " tags per word, and found no parse " +
+					decodeInstance.getTaggerRetries() + " times. The gold tag was kept for " +
+					decodeInstance.getTagger().getPrunedAccuracy() * 100 + "% of the gold words, against " +
+					decodeInstance.getTagger().getLexiconAccuracy() * 100 + "% without the pass, and was the best tag for " +
+					decodeInstance.getTagger().getBestTagAccuracy() * 100 + "%");
+		}
+		if (decodeInstance.getChartConstraints() != null) {
+			for (Tree goldTree : myGoldTreebank.getAnalyses())
+				decodeInstance.getChartConstraints().evaluate(goldTree.getYield(), Train.getInstance().getBrackets(goldTree));
+			System.out.println("The chart constraints closed " + decodeInstance.getChartConstraints().getClosedRatio() * 100 +
+					"% of the cells and restricted " + decodeInstance.getChartConstraints().getBinarizedRatio() * 100 +
+					"% to binarized symbols, and found no parse " + decodeInstance.getChartConstraintRetries() +
+					" times. They kept " + decodeInstance.getChartConstraints().getBracketRecall() * 100 +
+					"% of the gold constituents");
+		}
+		if (grammarFilter)
+			System.out.println("The grammar filter ruled out " + decodeInstance.getGrammarAnalysis().getRemovedRatio() * 100 +
+					"% of the symbols of the cells of more than one word, and closed " +
+					decodeInstance.getGrammarAnalysis().getClosedRatio() * 100 + "% of them");
+		if (recognize)
+			System.out.println("The recognizer kept " + decodeInstance.getRecognizer().getReachableRatio() * 100 +
+					"% of the derivable items, and found " + decodeInstance.getRecognizer().getUnparsable() +
+					" sentences with no parse");
+		if (decodeInstance.getAStar() != null)
+			System.out.println("A* took " + decodeInstance.getAStar().getItemsPopped() + " items off the agenda and explored " +
+					decodeInstance.getAStar().getExploredRatio() * 100 + "% of the chart cells");
+
+		// Fan the parses out to the repeated sentences, and keep them for the next runs
+		long duplicatesTime = 0;
+		for (int i = 0; i < parses.length; i++) {
+			if (parses[i] == null)
+				parses[i] = occurrenceTasks[i].getParse();
+			if (repeated[i])
+				duplicatesTime += occurrenceTasks[i].getDuration();
+		}
+		for (Task t : tasks)
+			sentenceCache.put(t.sentence, t.getParse(), t.getDuration());
+		System.out.println(tasks.length + " sentences were decoded, " + duplicates + " repeated sentences and " +
+				sentenceCache.getHits() + " cached sentences were not, saving an estimated " +
+				(duplicatesTime + sentenceCache.getSavedTime()) / 1000000 + " ms of decoding");
+		if (sentenceCacheFile != null)
+			sentenceCache.save(sentenceCacheFile, configuration);
+
+		// 5. de-transform trees
+		// Done while decoding: the parses are written directly from the chart without the binarization
+		List<String> myParses = Arrays.asList(parses);
 		
 		// 6. write output
-		writeOutput(args[2], myGrammar, myDeTransformedTrees);
+		writeOutput(args[2], myGrammar, myParses);
 	}
 	
 	/**
@@ -176,21 +465,21 @@ public class Parse {
 	private static void writeOutput(
 			String sExperimentName, 
 			Grammar myGrammar,
-			List<Tree> myTrees) {
+			List<String> myParses) {
 		
-		writeParseTrees(sExperimentName, myTrees);
+		writeParseTrees(sExperimentName, myParses);
 		writeGrammarRules(sExperimentName, myGrammar);
 		writeLexicalEntries(sExperimentName, myGrammar);
 	}
 
 	/**
-	 * Writes the parsed trees into a file.
+	 * Writes the bracketed parses into a file.
 	 */
 	private static void writeParseTrees(String sExperimentName,
-			List<Tree> myTrees) {
+			List<String> myParses) {
 		LineWriter writer = new LineWriter(sExperimentName+".parsed");
-		for (int i = 0; i < myTrees.size(); i++) {
-			writer.writeLine(myTrees.get(i).toString());
+		for (int i = 0; i < myParses.size(); i++) {
+			writer.writeLine(myParses.get(i));
 		}
 		writer.close();
 	}
@@ -0,0 +1,77 @@
+package parse;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * CLASS: Scheduler
+ *
+ * Definition: the order in which the sentences are handed to the thread pool
+ * Role: dispatch the most expensive sentences first, so that the batch does not end with a single
+ *       thread parsing a long sentence while the others are idle
+ * Responsibility: estimate the cost of parsing a sentence, and compare the schedule that was run
+ *                 with the file order schedule
+ *
+ * The cost of a sentence of n words is estimated as n^3 times the number of rules of the grammar,
+ * the complexity of the CKY algorithm.
+ */
+class Scheduler {
+
+	/**
+	 * @param length the number of words of a sentence
+	 * @param grammarSize the number of syntactic rules of the grammar
+	 * @return the estimated cost of parsing the sentence
+	 */
+	static double estimateCost(int length, int grammarSize) {
+		return (double) length * length * length * grammarSize;
+	}
+
+	/**
+	 * Order the tasks by decreasing estimated cost
+	 * @param tasks the tasks in file order
+	 * @param grammarSize the number of syntactic rules of the grammar
+	 * @return the positions of the tasks in the order of dispatch
+	 */
+	static Integer[] longestFirst(Task[] tasks, int grammarSize) {
+		double[] costs = new double[tasks.length];
+		Integer[] order = new Integer[tasks.length];
+		for (int i = 0; i < tasks.length; i++) {
+			costs[i] = estimateCost(tasks[i].sentence.size(), grammarSize);
+			order[i] = i;
+		}
+		// The sort is stable, so sentences of the same cost keep their file order
+		Arrays.sort(order, Comparator.comparingDouble((Integer i) -> costs[i]).reversed());
+		return order;
+	}
+
+	/**
+	 * Simulate a thread pool in which every thread takes the next task as soon as it is free
+	 * @param durations the durations of the tasks in file order
+	 * @param order the positions of the tasks in the order of dispatch
+	 * @param nThreads the number of threads
+	 * @return the time at which the last task ends
+	 */
+	static long makespan(long[] durations, Integer[] order, int nThreads) {
+		PriorityQueue<Long> freeAt = new PriorityQueue<Long>();
+		for (int t = 0; t < nThreads; t++)
+			freeAt.add(0L);
+		long end = 0;
+		for (int i : order) {
+			long finish = freeAt.poll() + durations[i];
+			end = Math.max(end, finish);
+			freeAt.add(finish);
+		}
+		return end;
+	}
+
+	/**
+	 * @return the positions of n tasks in file order
+	 */
+	static Integer[] fileOrder(int n) {
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		return order;
+	}
+}
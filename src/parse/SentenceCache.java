@@ -0,0 +1,149 @@
+package parse;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import utils.LineWriter;
+
+/**
+ * CLASS: SentenceCache
+ *
+ * Definition: a bounded cache from the words of a sentence to its parse
+ * Role: let Parse skip the decoding of sentences which were already parsed, in an earlier batch
+ *       of the same run or in an earlier run
+ * Responsibility: keep the most recently used sentences up to its size, remember how long every parse
+ *                 took to decode, and read and write itself to a file
+ *
+ * A cache file starts with a line describing the configuration of the parser which filled it, and is
+ * ignored when loaded by a parser with a different configuration. Every other line holds the decoding
+ * time in nanoseconds, the words of the sentence and its parse, separated by tabs.
+ * The cache is used by the main thread only, so it is not synchronized.
+ */
+class SentenceCache {
+
+	// A cached parse and the time it took to decode it
+	private static class Entry {
+		final String m_sParse;
+		final long m_nDuration;
+
+		Entry(String parse, long duration) {
+			m_sParse = parse;
+			m_nDuration = duration;
+		}
+	}
+
+	private final int m_nMaxSize;
+	private final LinkedHashMap<String, Entry> m_mapEntries;
+
+	// Statistics of the lookups which found their sentence
+	private long m_nHits = 0;
+	private long m_nSavedTime = 0;
+
+	/**
+	 * @param maxSize the maximal number of sentences kept by the cache
+	 */
+	SentenceCache(int maxSize) {
+		m_nMaxSize = maxSize;
+		m_mapEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > m_nMaxSize;
+			}
+		};
+	}
+
+	private static String key(List<String> sentence) {
+		return String.join(" ", sentence);
+	}
+
+	/**
+	 * @param sentence the words of a sentence
+	 * @return the parse of the sentence, or null if it is not in the cache
+	 */
+	String get(List<String> sentence) {
+		Entry entry = m_mapEntries.get(key(sentence));
+		if (entry == null)
+			return null;
+		m_nHits++;
+		m_nSavedTime += entry.m_nDuration;
+		return entry.m_sParse;
+	}
+
+	/**
+	 * @param sentence the words of a sentence
+	 * @param parse the parse of the sentence
+	 * @param duration the time it took to decode the sentence, in nanoseconds
+	 */
+	void put(List<String> sentence, String parse, long duration) {
+		m_mapEntries.put(key(sentence), new Entry(parse, duration));
+	}
+
+	int size() {
+		return m_mapEntries.size();
+	}
+
+	long getHits() {
+		return m_nHits;
+	}
+
+	/**
+	 * @return the decoding time of all the parses which were found in the cache, in nanoseconds
+	 */
+	long getSavedTime() {
+		return m_nSavedTime;
+	}
+
+	/**
+	 * Read the sentences of a cache file, if it exists and was written with the same configuration
+	 * @param path the cache file
+	 * @param configuration a description of the configuration of the parser
+	 * @return the number of sentences read
+	 */
+	int load(String path, String configuration) {
+		if (!new File(path).exists())
+			return 0;
+
+		int count = 0;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"))) {
+			if (!configuration.equals(reader.readLine()))
+				return 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length != 3)
+					continue;
+				put(Arrays.asList(fields[1].split(" ")), fields[2], Long.parseLong(fields[0]));
+				count++;
+			}
+		} catch (IOException e) {
+			System.err.println("Can't read the sentence cache: " + path);
+			e.printStackTrace();
+		}
+		return count;
+	}
+
+	/**
+	 * Write the sentences of the cache to a file, the least recently used first
+	 * @param path the cache file
+	 * @param configuration a description of the configuration of the parser
+	 */
+	void save(String path, String configuration) {
+		LineWriter writer = new LineWriter(path);
+		writer.writeLine(configuration);
+		for (Iterator<Map.Entry<String, Entry>> it = m_mapEntries.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Entry> e = it.next();
+			writer.writeLine(e.getValue().m_nDuration + "\t" + e.getKey() + "\t" + e.getValue().m_sParse);
+		}
+		writer.close();
+	}
+}
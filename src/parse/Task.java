@@ -2,8 +2,6 @@ package parse;
 
 import decode.Decode;
 import grammar.Grammar;
-import tree.Tree;
-
 import java.util.List;
 
 /**
@@ -12,25 +10,34 @@ import java.util.List;
 class Task implements Runnable {
     List<String> sentence;
     Decode decodeInstance;
-    private Tree tree;
+    private String parse;
     private static int counter = 0;
+    // time spent decoding the sentence, in nanoseconds
+    private long duration;
 
     public Task(List<String> s, Decode d) {
         sentence = s;
         decodeInstance = d;
     }
 
-    public Tree getTree(){
-        return tree;
+    // the bracketed de-binarized parse of the sentence
+    public String getParse(){
+        return parse;
+    }
+
+    public long getDuration(){
+        return duration;
     }
 
     public void run() {
-        tree = decodeInstance.decode(sentence);
+        long start = System.nanoTime();
+        parse = decodeInstance.decodeToString(sentence);
+        duration = System.nanoTime() - start;
         synchronized(this){
             counter++;
             if(counter % 10 == 0)
                 System.out.println("Finished processing " + counter + " sentences");
         }
-       //System.out.println(tree);
+       //System.out.println(parse);
     }
 }
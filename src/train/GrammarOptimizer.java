@@ -0,0 +1,229 @@
+package train;
+
+import grammar.Event;
+import grammar.Grammar;
+import grammar.Rule;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * CLASS: GrammarOptimizer
+ *
+ * Definition: a stage between training and decoding which makes a Grammar smaller
+ * Role: remove the syntactic rules which can not be part of any parse, and optionally the rare ones, since the
+ *       number of rules and symbols multiplies the cost of every chart cell
+ * Responsibility: find the useless symbols and rules, prune the rules below a count or probability threshold,
+ *                 renormalize the probabilities of their left-hand sides, and count the rules and symbols
+ *                 before and after
+ *
+ * A symbol is useless when it derives no words (it is not productive) or is not derived from a start symbol
+ * of the Grammar or from the start symbol of the decoder (it is not reachable), and so is every rule which
+ * holds one. Removing them changes no parse, so their probability is left as it is. The pruning by threshold
+ * is done after a first removal of the useless rules, and the probabilities of the remaining rules of every
+ * left-hand side which lost rules are scaled back to their sum before the pruning. A rule is never pruned
+ * when it is the most frequent rule of its left-hand side, and the rules left useless by the pruning (such
+ * as the other rules of a binarized constituent) are removed by a second pass.
+ *
+ * Only the syntactic rules are removed: the lexical rules stay, so that every word is tagged as before.
+ */
+public class GrammarOptimizer {
+
+	// The right-hand side of the lexical rules of the unknown words, whose probabilities are not renormalized
+	private static final String UNKNOWN = "UNKNOWN";
+
+	private final int m_nMinCount;
+	private final double m_dMinProbability;
+	private final String m_sStartSymbol;
+
+	private int m_nRulesBefore;
+	private int m_nRulesAfter;
+	private int m_nSymbolsBefore;
+	private int m_nSymbolsAfter;
+	private int m_nUselessRules;
+	private int m_nPrunedRules;
+
+	/**
+	 * @param minCount the least count of a kept rule, or at most 1 to keep the rules of any count
+	 * @param minProbability the least probability of a kept rule, or 0 to keep the rules of any probability
+	 * @param startSymbol the symbol at the root of the parses of the decoder, which is always reachable
+	 */
+	public GrammarOptimizer(int minCount, double minProbability, String startSymbol) {
+		m_nMinCount = minCount;
+		m_dMinProbability = minProbability;
+		m_sStartSymbol = startSymbol;
+	}
+
+	/**
+	 * Remove the useless rules of a grammar, and prune its rare rules
+	 * @param g the grammar, as returned by Train.train. It is changed in place
+	 * @return the grammar
+	 */
+	public Grammar optimize(Grammar g)
+	{
+		m_nRulesBefore = g.getNumberOfSyntacticRuleTypes();
+		m_nSymbolsBefore = countSymbols(g);
+
+		m_nUselessRules = removeUseless(g);
+		m_nPrunedRules = prune(g);
+		m_nUselessRules += removeUseless(g);
+
+		// The non-terminals are those of the remaining rules
+		g.getNonTerminalSymbols().clear();
+		for (Rule r : g.getSyntacticRules()) {
+			g.getNonTerminalSymbols().addAll(r.getLHS().getSymbols());
+			g.getNonTerminalSymbols().addAll(r.getRHS().getSymbols());
+		}
+		for (Rule r : g.getLexicalRules())
+			g.getNonTerminalSymbols().addAll(r.getLHS().getSymbols());
+
+		m_nRulesAfter = g.getNumberOfSyntacticRuleTypes();
+		m_nSymbolsAfter = countSymbols(g);
+		return g;
+	}
+
+	// The symbols of the syntactic rules and the pre-terminals
+	private static int countSymbols(Grammar g)
+	{
+		Set<String> symbols = new HashSet<String>();
+		for (Rule r : g.getSyntacticRules()) {
+			symbols.addAll(r.getLHS().getSymbols());
+			symbols.addAll(r.getRHS().getSymbols());
+		}
+		for (Rule r : g.getLexicalRules())
+			symbols.addAll(r.getLHS().getSymbols());
+		return symbols.size();
+	}
+
+	private static void removeRules(Grammar g, List<Rule> removed)
+	{
+		g.getSyntacticRules().removeAll(removed);
+		for (Rule r : removed)
+			g.getRuleCounts().remove(r);
+	}
+
+	/**
+	 * Remove the syntactic rules which hold a symbol that is not productive, or whose left-hand side is not
+	 * reachable from a start symbol of the grammar or of the decoder
+	 * @return the number of rules removed
+	 */
+	private int removeUseless(Grammar g)
+	{
+		// The pre-terminals are productive, and so is the left-hand side of a rule whose symbols all are
+		Set<String> productive = new HashSet<String>();
+		for (Rule r : g.getLexicalRules())
+			productive.add(r.getLHS().toString());
+		for (boolean changed = true; changed; ) {
+			changed = false;
+			for (Rule r : g.getSyntacticRules())
+				if (!productive.contains(r.getLHS().toString()) && productive.containsAll(r.getRHS().getSymbols()))
+					changed |= productive.add(r.getLHS().toString());
+		}
+
+		Set<String> reachable = new HashSet<String>(g.getStartSymbols());
+		reachable.add(m_sStartSymbol);
+		for (boolean changed = true; changed; ) {
+			changed = false;
+			for (Rule r : g.getSyntacticRules())
+				if (reachable.contains(r.getLHS().toString()) && productive.containsAll(r.getRHS().getSymbols()))
+					changed |= reachable.addAll(r.getRHS().getSymbols());
+		}
+
+		List<Rule> useless = new ArrayList<Rule>();
+		for (Rule r : g.getSyntacticRules())
+			if (!reachable.contains(r.getLHS().toString()) || !productive.containsAll(r.getRHS().getSymbols()))
+				useless.add(r);
+		removeRules(g, useless);
+		return useless.size();
+	}
+
+	/**
+	 * Prune the syntactic rules below the thresholds, except the most frequent rules of every left-hand side,
+	 * and renormalize the rules of the left-hand sides which lost some
+	 * @return the number of rules pruned
+	 */
+	private int prune(Grammar g)
+	{
+		if (m_nMinCount <= 1 && m_dMinProbability <= 0)
+			return 0;
+
+		Map<Event, Integer> maxCounts = new HashMap<Event, Integer>();
+		for (Rule r : g.getSyntacticRules())
+			maxCounts.merge(r.getLHS(), g.getRuleCounts().get(r), Math::max);
+
+		List<Rule> pruned = new ArrayList<Rule>();
+		Set<Event> changed = new HashSet<Event>();
+		for (Rule r : g.getSyntacticRules()) {
+			int count = g.getRuleCounts().get(r);
+			boolean rare = count < m_nMinCount || Math.exp(-r.getMinusLogProb()) < m_dMinProbability;
+			if (rare && count < maxCounts.get(r.getLHS())) {
+				pruned.add(r);
+				changed.add(r.getLHS());
+			}
+		}
+
+		// The probabilities of the rules of every changed left-hand side, before and after the pruning
+		Map<Event, Double> before = new HashMap<Event, Double>();
+		Map<Event, Double> after = new HashMap<Event, Double>();
+		Set<Rule> prunedSet = new HashSet<Rule>(pruned);
+		List<Rule> scaled = new ArrayList<Rule>();
+		for (Rule r : g.getSyntacticRules())
+			addProbability(r, changed, prunedSet, before, after, scaled);
+		for (Rule r : g.getLexicalRules())
+			if (!r.getRHS().toString().equals(UNKNOWN))
+				addProbability(r, changed, prunedSet, before, after, scaled);
+
+		removeRules(g, pruned);
+		for (Rule r : scaled)
+			r.setMinusLogProb(r.getMinusLogProb() + Math.log(after.get(r.getLHS()) / before.get(r.getLHS())));
+		return pruned.size();
+	}
+
+	// Add the probability of a rule to the sums of its left-hand side, if it changed
+	private static void addProbability(Rule r, Set<Event> changed, Set<Rule> pruned, Map<Event, Double> before,
+			Map<Event, Double> after, List<Rule> scaled)
+	{
+		if (!changed.contains(r.getLHS()))
+			return;
+		double p = Math.exp(-r.getMinusLogProb());
+		before.merge(r.getLHS(), p, Double::sum);
+		if (!pruned.contains(r)) {
+			after.merge(r.getLHS(), p, Double::sum);
+			scaled.add(r);
+		}
+	}
+
+	public int getRulesBefore() {
+		return m_nRulesBefore;
+	}
+
+	public int getRulesAfter() {
+		return m_nRulesAfter;
+	}
+
+	public int getSymbolsBefore() {
+		return m_nSymbolsBefore;
+	}
+
+	public int getSymbolsAfter() {
+		return m_nSymbolsAfter;
+	}
+
+	/**
+	 * @return the number of rules removed because they held a useless symbol
+	 */
+	public int getUselessRules() {
+		return m_nUselessRules;
+	}
+
+	/**
+	 * @return the number of rules pruned by the thresholds
+	 */
+	public int getPrunedRules() {
+		return m_nPrunedRules;
+	}
+}
@@ -1,8 +1,10 @@
 package train;
 
+import grammar.BoundaryModel;
 import grammar.Event;
 import grammar.Grammar;
 import grammar.Rule;
+import grammar.TagModel;
 
 import java.util.*;
 
@@ -62,6 +64,9 @@ public class Train {
 				String newNonTerminal = "";
 				if(rhsSymbols.size() > 2){
 					if(binarizationMap.containsKey(r)){
+						// The rule may have been binarized below the root, its first rule is a top rule here
+						if(r.isTop())
+							binarizationMap.get(r).get(0).setTop(true);
 						actualRules.addAll(binarizationMap.get(r));
 					} else {
 						List<Rule> currentBinarization = new ArrayList<Rule>();
@@ -157,6 +162,139 @@ public class Train {
 		return myGrammar;
 	}
 
+	/**
+	 * Read off a trigram model of the pre-terminals from a treebank, for the tagging pass of the decoder.
+	 * The weights of the unigram, bigram and trigram frequencies are set by deleted interpolation: every
+	 * trigram votes, with its count, for the order whose frequency predicts it best once it is left out
+	 * @param myTreebank the treebank
+	 * @return the model
+	 */
+	public TagModel trainTagger(Treebank myTreebank)
+	{
+		TagModel myModel = new TagModel();
+		for (int i = 0; i < myTreebank.size(); i++) {
+			List<String> tags = new ArrayList<String>();
+			for (Node myNode : myTreebank.getAnalyses().get(i).getNodes())
+				if (myNode.isPreTerminal())
+					tags.add(myNode.getIdentifier());
+			myModel.addSequence(tags);
+		}
+
+		// The counts of the bigrams and unigrams as the history of a prediction
+		CountMap<Event> bigramHistories = new CountMap<Event>();
+		for (Map.Entry<Event, Integer> e : myModel.getTrigrams().entrySet()) {
+			List<String> symbols = e.getKey().getSymbols();
+			bigramHistories.add(new Event(symbols.get(0) + " " + symbols.get(1)), e.getValue());
+		}
+		CountMap<Event> unigramHistories = new CountMap<Event>();
+		for (Map.Entry<Event, Integer> e : myModel.getBigrams().entrySet())
+			unigramHistories.add(new Event(e.getKey().getSymbols().get(0)), e.getValue());
+		int total = 0;
+		for (Integer count : myModel.getUnigrams().values())
+			total += count;
+
+		double[] votes = new double[3];
+		for (Map.Entry<Event, Integer> e : myModel.getTrigrams().entrySet()) {
+			List<String> symbols = e.getKey().getSymbols();
+			Event bigram = new Event(symbols.get(1) + " " + symbols.get(2));
+			double[] frequencies = {
+					frequency(myModel.getUnigrams().get(new Event(symbols.get(2))), total),
+					frequency(myModel.getBigrams().get(bigram), unigramHistories.get(new Event(symbols.get(1)))),
+					frequency(e.getValue(), bigramHistories.get(new Event(symbols.get(0) + " " + symbols.get(1))))};
+			int best = 0;
+			for (int n = 1; n < 3; n++)
+				if (frequencies[n] > frequencies[best])
+					best = n;
+			votes[best] += e.getValue();
+		}
+		double sum = votes[0] + votes[1] + votes[2];
+		if (sum > 0)
+			myModel.setLambdas(votes[0] / sum, votes[1] / sum, votes[2] / sum);
+		return myModel;
+	}
+
+	// The relative frequency of an n-gram once one occurrence of it is left out
+	private static double frequency(int count, int historyCount)
+	{
+		return historyCount <= 1 ? 0.0 : (count - 1) / (double) (historyCount - 1);
+	}
+
+	/**
+	 * Train the chart constraints on a treebank: an averaged perceptron for each of the classifiers which tell
+	 * whether a word may begin and whether it may end a constituent of more than one word
+	 * @param myTreebank the treebank
+	 * @param myGrammar the grammar read off the treebank, which gives the ambiguity classes of the words
+	 * @param epochs the number of passes over the treebank
+	 * @return the model
+	 */
+	public BoundaryModel trainBoundaries(Treebank myTreebank, Grammar myGrammar, int epochs)
+	{
+		BoundaryModel myModel = new BoundaryModel(myGrammar);
+
+		// The updates weighted by the step at which they were made, from which the average weights are found
+		BoundaryModel myUpdates = new BoundaryModel(myGrammar);
+		int step = 1;
+		for (int epoch = 0; epoch < epochs; epoch++) {
+			for (int i = 0; i < myTreebank.size(); i++) {
+				Tree myTree = myTreebank.getAnalyses().get(i);
+				List<String> words = myTree.getYield();
+				boolean[][] gold = new boolean[2][words.size()];
+				for (int[] span : getBrackets(myTree)) {
+					gold[BoundaryModel.BEGIN][span[0]] = true;
+					gold[BoundaryModel.END][span[1] - 1] = true;
+				}
+				int[][] features = myModel.features(words);
+				for (int w = 0; w < words.size(); w++) {
+					for (int label = BoundaryModel.BEGIN; label <= BoundaryModel.END; label++) {
+						boolean predicted = myModel.score(features[w], label) > 0;
+						if (predicted != gold[label][w]) {
+							double delta = gold[label][w] ? 1 : -1;
+							myModel.update(features[w], label, delta);
+							myUpdates.update(features[w], label, delta * step);
+						}
+					}
+					step++;
+				}
+			}
+		}
+
+		double[] weights = myModel.getWeights();
+		double[] updates = myUpdates.getWeights();
+		for (int f = 0; f < weights.length; f++)
+			weights[f] -= updates[f] / step;
+		return myModel;
+	}
+
+	/**
+	 * Get the constituents of a tree which the chart constraints predict: those of more than one word, except
+	 * those which span the whole sentence, whose cell is never closed
+	 * @param myTree a tree
+	 * @return the spans of the constituents, as the position of their first word and of the word after their last
+	 */
+	public List<int[]> getBrackets(Tree myTree)
+	{
+		List<int[]> theBrackets = new ArrayList<int[]>();
+		int n = collectBrackets(myTree.getRoot(), 0, theBrackets);
+		List<int[]> result = new ArrayList<int[]>();
+		for (int[] span : theBrackets)
+			if (span[1] - span[0] < n)
+				result.add(span);
+		return result;
+	}
+
+	// Add the constituents of a subtree starting at the given word, and return the position after its last word
+	private int collectBrackets(Node myNode, int start, List<int[]> theBrackets)
+	{
+		if (myNode.isLeaf())
+			return start + 1;
+		int end = start;
+		for (Node n : myNode.getDaughters())
+			end = collectBrackets(n, end, theBrackets);
+		if (end - start > 1)
+			theBrackets.add(new int[] {start, end});
+		return end;
+	}
+
 	public List<Rule> getRules(Tree myTree)
 	{
 		List<Rule> theRules = new ArrayList<Rule>();
@@ -179,7 +317,8 @@ public class Train {
 				Rule theRule = new Rule(eLHS, eRHS);
 				if (myNode.isPreTerminal())
 					theRule.setLexical(true);
-				if (myNode.isRoot())
+				// The root itself is not internal, so the top rules are those of its daughters
+				if (myNode.getParent() != null && myNode.getParent().isRoot())
 					theRule.setTop(true);
 				theRules.add(theRule);
 			}	